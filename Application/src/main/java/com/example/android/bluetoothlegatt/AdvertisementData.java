@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * A view over the AD structures of an advertisement or scan response, as passed to
+ * {@code onLeScan} in {@code scanRecord}.  {@link #wrap(byte[])} walks the record once and
+ * remembers where each structure is; the accessors then read fields in place, so parsing a
+ * record allocates nothing.  Offsets returned here index the wrapped array.  One instance can
+ * be reused for every record from the same thread.
+ */
+public final class AdvertisementData {
+    // AD types from the Bluetooth Core Specification Supplement.
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_SHORT_NAME = 0x08;
+    public static final int TYPE_COMPLETE_NAME = 0x09;
+    public static final int TYPE_TX_POWER = 0x0a;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_SERVICE_DATA32 = 0x20;
+    public static final int TYPE_SERVICE_DATA128 = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA = 0xff;
+
+    /** Returned by {@link #getTxPowerLevel()} when the record has none. */
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    // Each structure takes at least two bytes; an extended advertisement is at most 255 bytes.
+    private static final int MAX_STRUCTURES = 128;
+
+    // Bluetooth Base UUID, 00000000-0000-1000-8000-00805f9b34fb.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mRecord;
+    private int mCount;
+    private final int[] mTypes = new int[MAX_STRUCTURES];
+    private final int[] mOffsets = new int[MAX_STRUCTURES];
+    private final int[] mLengths = new int[MAX_STRUCTURES];
+
+    /**
+     * Indexes the AD structures of {@code record}, replacing whatever was wrapped before.
+     * Parsing stops at the zero padding at the end of the record.
+     *
+     * @return false if the record is null or a structure runs past its end; the structures
+     *         before that are still available.
+     */
+    public boolean wrap(byte[] record) {
+        mRecord = record;
+        mCount = 0;
+        if (record == null) {
+            return false;
+        }
+        int offset = 0;
+        while (offset < record.length) {
+            final int length = record[offset] & 0xff;
+            if (length == 0) {
+                return true;
+            }
+            if (offset + 1 + length > record.length || mCount == MAX_STRUCTURES) {
+                return false;
+            }
+            mTypes[mCount] = record[offset + 1] & 0xff;
+            mOffsets[mCount] = offset + 2;
+            mLengths[mCount] = length - 1;
+            mCount++;
+            offset += 1 + length;
+        }
+        return true;
+    }
+
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    public int getStructureCount() {
+        return mCount;
+    }
+
+    public int getType(int index) {
+        return mTypes[index];
+    }
+
+    /** Offset in {@link #getRecord()} of the data of structure {@code index}. */
+    public int getDataOffset(int index) {
+        return mOffsets[index];
+    }
+
+    public int getDataLength(int index) {
+        return mLengths[index];
+    }
+
+    /** Returns the index of the first structure of {@code type}, or -1. */
+    public int find(int type) {
+        for (int i = 0; i < mCount; i++) {
+            if (mTypes[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the advertised flags, or -1 if there are none. */
+    public int getFlags() {
+        final int index = find(TYPE_FLAGS);
+        return index < 0 || mLengths[index] < 1 ? -1 : mRecord[mOffsets[index]] & 0xff;
+    }
+
+    /** Returns the TX power level in dBm, or {@link #NO_TX_POWER}. */
+    public int getTxPowerLevel() {
+        final int index = find(TYPE_TX_POWER);
+        return index < 0 || mLengths[index] < 1 ? NO_TX_POWER : mRecord[mOffsets[index]];
+    }
+
+    /** Returns the index of the complete local name, else of the shortened one, or -1. */
+    public int findLocalName() {
+        final int index = find(TYPE_COMPLETE_NAME);
+        return index >= 0 ? index : find(TYPE_SHORT_NAME);
+    }
+
+    /**
+     * Compares the local name with {@code name} without decoding it.  Only ASCII names can
+     * match.
+     */
+    public boolean localNameEquals(String name) {
+        final int index = findLocalName();
+        if (index < 0 || mLengths[index] != name.length()) {
+            return false;
+        }
+        final int offset = mOffsets[index];
+        for (int i = 0; i < mLengths[index]; i++) {
+            if (mRecord[offset + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decodes the local name; allocates, so not for per-advertisement use. */
+    public String getLocalName() {
+        final int index = findLocalName();
+        return index < 0 ? null : new String(mRecord, mOffsets[index], mLengths[index], UTF_8);
+    }
+
+    /** Returns the index of the manufacturer data of {@code companyId}, or -1. */
+    public int findManufacturerData(int companyId) {
+        for (int i = 0; i < mCount; i++) {
+            if (mTypes[i] == TYPE_MANUFACTURER_DATA && mLengths[i] >= 2
+                    && readUint16(mOffsets[i]) == companyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the service data for the given service, or -1.  The payload starts
+     * after the UUID; see {@link #getServiceDataOffset(int)}.
+     */
+    public int findServiceData(UUID service) {
+        final long msb = service.getMostSignificantBits();
+        final long lsb = service.getLeastSignificantBits();
+        for (int i = 0; i < mCount; i++) {
+            final int width = serviceDataUuidWidth(mTypes[i]);
+            if (width > 0 && mLengths[i] >= width
+                    && uuidMatches(mOffsets[i], width, msb, lsb)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Offset of the payload of a service data structure, past its UUID. */
+    public int getServiceDataOffset(int index) {
+        return mOffsets[index] + serviceDataUuidWidth(mTypes[index]);
+    }
+
+    public int getServiceDataLength(int index) {
+        return mLengths[index] - serviceDataUuidWidth(mTypes[index]);
+    }
+
+    /** Whether any of the service UUID lists, complete or not, contains {@code service}. */
+    public boolean hasServiceUuid(UUID service) {
+        return hasServiceUuid(service.getMostSignificantBits(),
+                service.getLeastSignificantBits());
+    }
+
+    public boolean hasServiceUuid(long msb, long lsb) {
+        for (int i = 0; i < mCount; i++) {
+            final int width = serviceListUuidWidth(mTypes[i]);
+            if (width == 0) {
+                continue;
+            }
+            final int end = mOffsets[i] + mLengths[i] - width;
+            for (int offset = mOffsets[i]; offset <= end; offset += width) {
+                if (uuidMatches(offset, width, msb, lsb)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int readUint8(int offset) {
+        return mRecord[offset] & 0xff;
+    }
+
+    public int readUint16(int offset) {
+        return (mRecord[offset + 1] & 0xff) << 8 | mRecord[offset] & 0xff;
+    }
+
+    public short readInt16(int offset) {
+        return SampleDecoder.decodeInt16Le(mRecord, offset);
+    }
+
+    private static int serviceListUuidWidth(int type) {
+        switch (type) {
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16_COMPLETE:
+                return 2;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32_COMPLETE:
+                return 4;
+            case TYPE_UUID128_INCOMPLETE:
+            case TYPE_UUID128_COMPLETE:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private static int serviceDataUuidWidth(int type) {
+        switch (type) {
+            case TYPE_SERVICE_DATA16:
+                return 2;
+            case TYPE_SERVICE_DATA32:
+                return 4;
+            case TYPE_SERVICE_DATA128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    // Compares a little-endian UUID of 2, 4 or 16 bytes at offset with msb/lsb.  Short UUIDs
+    // are aliases within the Bluetooth Base UUID.
+    private boolean uuidMatches(int offset, int width, long msb, long lsb) {
+        if (width == 16) {
+            return readInt64(offset) == lsb && readInt64(offset + 8) == msb;
+        }
+        if (lsb != BASE_UUID_LSB || (msb & 0xffffffffL) != BASE_UUID_MSB) {
+            return false;
+        }
+        long value = readUint16(offset);
+        if (width == 4) {
+            value |= (long) readUint16(offset + 2) << 16;
+        }
+        return value == msb >>> 32;
+    }
+
+    private long readInt64(int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (mRecord[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} over {@code BluetoothGatt}.  Each transport owns its client and its
+ * own {@code BluetoothGattCallback}, and resolves handles with a {@link GattHandleTable} at
+ * every discovery.  Callbacks arrive on the Bluetooth binder thread.
+ */
+class AndroidGattTransport implements GattTransport {
+    private final static String TAG = AndroidGattTransport.class.getSimpleName();
+
+    private static final UUID UUID_CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    private final String mAddress;
+    private final Callback mCallback;
+    // Characteristics resolved at service discovery; empty while disconnected.
+    private final GattHandleTable mHandles = new GattHandleTable();
+    private volatile BluetoothGatt mGatt;
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (gatt != mGatt) {
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mHandles.clear();
+            }
+            mCallback.onConnectionStateChange(status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (gatt != mGatt) {
+                return;
+            }
+            // Rebuilt on every discovery, so a changed GATT database never leaves stale
+            // characteristic references behind.
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mHandles.populate(gatt);
+            } else {
+                mHandles.clear();
+            }
+            mCallback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic, int status) {
+            if (gatt == mGatt) {
+                mCallback.onCharacteristicRead(mHandles.handleOf(characteristic),
+                        characteristic.getUuid(), characteristic.getValue(), status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic, int status) {
+            if (gatt == mGatt) {
+                mCallback.onCharacteristicWrite(mHandles.handleOf(characteristic),
+                        characteristic.getUuid(), characteristic.getValue(), status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            if (gatt == mGatt) {
+                mCallback.onCharacteristicChanged(mHandles.handleOf(characteristic),
+                        characteristic.getUuid(), characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (gatt != mGatt
+                    || !UUID_CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
+                return;
+            }
+            final BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+            final byte[] value = descriptor.getValue();
+            final boolean enabled = value != null && value.length > 0 && value[0] != 0;
+            mCallback.onNotificationsSet(mHandles.handleOf(characteristic),
+                    characteristic.getUuid(), enabled, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (gatt == mGatt) {
+                mCallback.onMtuChanged(mtu, status);
+            }
+        }
+    };
+
+    AndroidGattTransport(Context context, BluetoothAdapter adapter, String address,
+                         Callback callback) {
+        mContext = context;
+        mAdapter = adapter;
+        mAddress = address;
+        mCallback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean open(boolean background) {
+        close();
+        final BluetoothDevice device = mAdapter.getRemoteDevice(mAddress);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+        mGatt = device.connectGatt(mContext, background, mGattCallback);
+        return mGatt != null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mGatt != null;
+    }
+
+    @Override
+    public boolean reconnect() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        final BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        mHandles.clear();
+        if (gatt != null) {
+            gatt.close();
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public int getProperties(int handle) {
+        return mHandles.getProperties(handle);
+    }
+
+    @Override
+    public boolean hasCccd(int handle) {
+        return mHandles.getCccd(handle) != null;
+    }
+
+    @Override
+    public long getDatabaseFingerprint() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt == null ? 0 : GattAttributeCache.fingerprint(gatt.getServices());
+    }
+
+    @Override
+    public boolean isBonded() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    @Override
+    public boolean read(int handle) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic characteristic = mHandles.get(handle);
+        return gatt != null && characteristic != null && gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean write(int handle, byte[] value, boolean withoutResponse) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic characteristic = mHandles.get(handle);
+        if (gatt == null || characteristic == null) {
+            return false;
+        }
+        // The characteristic object is shared, so its value is only set once it is our turn.
+        characteristic.setValue(value);
+        characteristic.setWriteType(withoutResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean setNotifications(int handle, boolean enabled) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic characteristic = mHandles.get(handle);
+        final BluetoothGattDescriptor descriptor = mHandles.getCccd(handle);
+        if (gatt == null || characteristic == null || descriptor == null) {
+            return false;
+        }
+        byte[] value;
+        if (mHandles.hasProperty(handle, BluetoothGattCharacteristic.PROPERTY_NOTIFY)) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else if (mHandles.hasProperty(handle, BluetoothGattCharacteristic.PROPERTY_INDICATE)) {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        } else {
+            return false;
+        }
+        if (!gatt.setCharacteristicNotification(characteristic, enabled)) {
+            return false;
+        }
+        descriptor.setValue(enabled ? value : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean registerNotifications(int handle, boolean enabled) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic characteristic = mHandles.get(handle);
+        return gatt != null && characteristic != null
+                && gatt.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    @Override
+    public boolean isLinkTuningSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestMtu(int mtu) {
+        final BluetoothGatt gatt = mGatt;
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt != null
+                && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestConnectionPriority(int linkProfile) {
+        final BluetoothGatt gatt = mGatt;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || gatt == null) {
+            return false;
+        }
+        final int priority;
+        switch (linkProfile) {
+            case LinkProfile.HIGH_THROUGHPUT:
+                priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+                break;
+            case LinkProfile.LOW_POWER:
+                priority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+                break;
+            default:
+                priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                break;
+        }
+        return gatt.requestConnectionPriority(priority);
+    }
+}
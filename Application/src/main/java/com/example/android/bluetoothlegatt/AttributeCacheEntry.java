@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * What {@link GattAttributeCache} remembers about one device's GATT database.
+ */
+class AttributeCacheEntry {
+    /** Hash of the service, characteristic and descriptor layout. */
+    long fingerprint;
+    // ATT MTU of the last completed exchange with the device, or 23 if there was none.
+    int mtu;
+    // Bit per GattHandles handle whose CCCD was confirmed enabled.
+    int enabledHandles;
+}
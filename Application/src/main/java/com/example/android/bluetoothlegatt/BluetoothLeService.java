@@ -21,41 +21,69 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices.  Any number of devices can be connected at once; each one is a
+ * {@link GattConnection} with its own state, operation queue and handle table.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Every device we have opened a GATT client for, keyed by address.
+    private final ConcurrentHashMap<String, GattConnection> mConnections =
+            new ConcurrentHashMap<String, GattConnection>();
+    private int mNextConnectionIndex;
+    // Codecs registered on top of the board's own, copied into every new connection.
+    private final CodecTable mCodecs = new CodecTable();
+
+    // Non-null while a session is being recorded.
+    private volatile SessionRecorder mRecorder;
+    // What stopped the last recording that failed, for dump().
+    private volatile String mRecordingFailure;
+
+    private final Handler mHandler = new Handler();
+    // How often connection stats are written to the log while connected.
+    private static final long STATS_PERIOD = 5000;
+
+    private final GattEventFanout mListeners = new GattEventFanout();
+    // Registered listeners, keyed by the listener the caller passed in.
+    private final HashMap<GattEventListener, Registration> mRegistrations =
+            new HashMap<GattEventListener, Registration>();
+    // Intents are only sent for callers still using the broadcast interface.
+    private volatile boolean mBroadcastsEnabled;
+    private volatile boolean mMotorWriteWithoutResponse;
+    private volatile int mLinkProfile = LinkProfile.BALANCED;
+    // GATT layout and subscriptions of known devices, from earlier connections.
+    private volatile GattAttributeCache mAttributeCache;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -70,6 +98,9 @@ public class BluetoothLeService extends Service {
     public final static String ACTION_TONOTIFY =
             "com.example.bluetooth.le.ACTION_TONOTIFY";
 
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.ADDRESS";
+    // Sensor extras are Strings: the raw value bytes, a newline, then the value with its unit.
     public final static String EXTRA_ROLL_DATA =
             "com.example.bluetooth.le.ROLL_DATA";
     public final static String EXTRA_PITCH_DATA =
@@ -86,6 +117,8 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_TEMP_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.TEMP_MEASUREMENT);
 
+    public final static UUID UUID_SENSOR_SERVICE =
+            UUID.fromString(SampleGattAttributes.SENSOR_SERVICE);
     public final static UUID UUID_SAMPLE_SERVICE =
             UUID.fromString(SampleGattAttributes.SAMPLE_SERVICE);
     public final static UUID UUID_DT_SERVICE =
@@ -94,140 +127,238 @@ public class BluetoothLeService extends Service {
             UUID.fromString(SampleGattAttributes.SAMPLE_CHARA);
     public final static UUID UUID_DOUBLE_TAP_CHARA =
             UUID.fromString(SampleGattAttributes.DOUBLE_TAP_CHARA);
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    public final static UUID UUID_CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+    // Connections talk to real peripherals unless a test build swaps in other transports.
+    private volatile GattTransport.Factory mTransportFactory;
+    private final GattTransport.Factory mAndroidTransports = new GattTransport.Factory() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+        public GattTransport create(String address, GattTransport.Callback callback) {
+            return new AndroidGattTransport(BluetoothLeService.this, mBluetoothAdapter, address,
+                    callback);
         }
+    };
 
+    // Connections run their timeouts, reconnects and polls on the main thread.
+    private final GattOperationQueue.Timer mTimer = new GattOperationQueue.Timer() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+        public void schedule(Runnable task, long delayMs) {
+            mHandler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    };
+
+    // Decodes and dispatches the sensor values of every connection off the GATT callback
+    // thread, so slow listeners can't hold up the Bluetooth stack.
+    private final IngestionPipeline mIngestion = new IngestionPipeline();
+
+    private final GattConnection.Host mConnectionHost = new GattConnection.Host() {
+        @Override
+        public CodecTable getCodecs() {
+            return mCodecs;
+        }
+
+        @Override
+        public AttributeCacheEntry getCachedAttributes(String address) {
+            final GattAttributeCache cache = mAttributeCache;
+            return cache == null ? null : cache.get(address);
+        }
+
+        @Override
+        public void putCachedAttributes(String address, AttributeCacheEntry entry) {
+            final GattAttributeCache cache = mAttributeCache;
+            if (cache != null) {
+                cache.put(address, entry);
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic, int status)
-        {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void invalidateCachedAttributes(String address) {
+            final GattAttributeCache cache = mAttributeCache;
+            if (cache != null) {
+                cache.invalidate(address);
             }
         }
 
         @Override
-        public void onCharacteristicWrite(
-                BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-            broadcastUpdate(ACTION_DATA_SENT, characteristic);
+        public void dispatchConnectionState(String address, int state) {
+            BluetoothLeService.this.dispatchConnectionState(address, state);
+        }
+
+        @Override
+        public void dispatchServicesDiscovered(String address) {
+            BluetoothLeService.this.dispatchServicesDiscovered(address);
+        }
+
+        @Override
+        public void dispatchSample(GattConnection connection, SensorSample sample) {
+            BluetoothLeService.this.dispatchSample(connection, sample);
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic){
-            broadcastUpdate(ACTION_DATA_AVAILABLE,characteristic);
-        }
-
-//        @Override
-//        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status){
-//            super.onDescriptorWrite( gatt,  descriptor,  status);
-//            if(status == BluetoothGatt.GATT_SUCCESS){
-//                if(gatt.getDevice().toString().equals("03:80:E1:00:34:08")){
-//                    broadcastUpdate(ACTION_TONOTIFY,gatt.getService(
-//                            UUID_DT_SERVICE).getCharacteristic(UUID_DOUBLE_TAP_CHARA));
-//                }
-//            }
-//        }
+        public void dispatchWriteAck(String address, UUID characteristic, byte[] dataSent,
+                                     int status) {
+            BluetoothLeService.this.dispatchWriteAck(address, characteristic, dataSent, status);
+        }
+
+        @Override
+        public void onDoubleTap(String address) {
+            BluetoothLeService.this.onDoubleTap(address);
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, Throwable tr) {
+            Log.println(priority, tag,
+                    tr == null ? message : message + '\n' + Log.getStackTraceString(tr));
+        }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    // Registers the vendor attribute names shipped as an asset.
+    private void loadAttributeProfiles() {
+        InputStream in = null;
+        try {
+            in = getAssets().open(SampleGattAttributes.PROFILE_ASSET);
+            Log.d(TAG, "Loaded " + SampleGattAttributes.loadProfile(in) + " vendor attributes");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load " + SampleGattAttributes.PROFILE_ASSET, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-        //onWrite: check the characteristic's value to see if it is sent successfully
-        if(UUID_SAMPLE_CHARA.equals(characteristic.getUuid())) {
-            final byte[] dataTemp = characteristic.getValue();
-            if (dataTemp != null && dataTemp.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(dataTemp.length);
-                short value = (short) (dataTemp[1] << 8 | dataTemp[0] & 0xff);
-                stringBuilder.append(String.format("%d " + value));
-                //celsius: \u2103; degree:\u00b0
-                intent.putExtra(EXTRA_DATA_SENT, new String(dataTemp) + "\n"
-                        + stringBuilder.toString());
-                sendBroadcast(intent);
+    private final Runnable mStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (GattConnection connection : mConnections.values()) {
+                if (connection.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
+                    Log.d(TAG, connection.getAddress() + ": " + connection.getStats());
+                }
+            }
+            Log.d(TAG, "All: " + getAggregateStats());
+            for (int profile = 0; profile < LinkProfile.COUNT; profile++) {
+                LinkProfileStats stats = getLinkProfileStats(profile);
+                if (stats.activeNanos > 0) {
+                    Log.d(TAG, stats.toString());
+                }
+            }
+            if (getConnectedCount() > 0) {
+                mHandler.postDelayed(this, STATS_PERIOD);
             }
         }
-        //onDoubleTap
-        if(characteristic.getUuid().equals(UUID_DOUBLE_TAP_CHARA)){
-            wakeUpScr();
-            toNotify();
-        }
-        //onRead: temperature
-        if (UUID_TEMP_MEASUREMENT.equals(characteristic.getUuid())) {
-            final byte[] dataTemp = characteristic.getValue();
-            if (dataTemp != null && dataTemp.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(dataTemp.length);
-                short value = (short) (dataTemp[1]<<8 | dataTemp[0]&0xff);
-                stringBuilder.append(String.format("%d.%d "+"\u2103", value/100,value%100));
-                //celsius: \u2103; degree:\u00b0
-                intent.putExtra(EXTRA_TEMP_DATA, new String(dataTemp) + "\n"
-                        + stringBuilder.toString());
-                sendBroadcast(intent);
+    };
+
+    private int getConnectedCount() {
+        int connected = 0;
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
+                connected++;
             }
         }
-        //onRead: pitch
-        if(UUID_PITCH_MEASUREMENT.equals(characteristic.getUuid())) {
-            final byte[] dataPitch = characteristic.getValue();
-            if (dataPitch != null && dataPitch.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(dataPitch.length);
-                short value = (short) (dataPitch[1] << 8 | dataPitch[0] & 0xff);
-                stringBuilder.append(String.format("%d.%d " + "\u00b0", value / 100, value % 100));
-                //celsius: \u2103; degree:\u00b0
-                intent.putExtra(EXTRA_PITCH_DATA, new String(dataPitch) + "\n"
-                        + stringBuilder.toString());
-                sendBroadcast(intent);
+        return connected;
+    }
+
+    // Called by the connections, on the GATT callback thread; dispatchSample() on the
+    // ingestion thread.
+    void dispatchConnectionState(String address, int state) {
+        if (state == BluetoothProfile.STATE_CONNECTED) {
+            mHandler.removeCallbacks(mStatsRunnable);
+            mHandler.postDelayed(mStatsRunnable, STATS_PERIOD);
+        }
+        mListeners.onConnectionStateChanged(address, state);
+        if (state == BluetoothProfile.STATE_CONNECTED) {
+            broadcastUpdate(ACTION_GATT_CONNECTED, address);
+        } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
+            broadcastUpdate(ACTION_GATT_DISCONNECTED, address);
+        }
+    }
+
+    void dispatchServicesDiscovered(String address) {
+        mListeners.onServicesDiscovered(address);
+        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, address);
+    }
+
+    void dispatchSample(GattConnection connection, SensorSample sample) {
+        final String address = connection.getAddress();
+        final SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            if (recorder.isRunning()) {
+                recorder.record(connection.getIndex(), sample.channel, sample.value,
+                        sample.timestampNanos);
+            } else {
+                onRecordingFailed(recorder);
             }
         }
-        //onRead: roll
-            if(UUID_ROLL_MEASUREMENT.equals(characteristic.getUuid())){
-                final byte[] dataRoll = characteristic.getValue();
-                if (dataRoll != null && dataRoll.length > 0) {
-                    final StringBuilder stringBuilder = new StringBuilder(dataRoll.length);
-                    short value = (short) (dataRoll[1] << 8 | dataRoll[0] & 0xff);
-                    stringBuilder.append(String.format("%d.%d " + "\u00b0", value / 100, value % 100));
-                    //celsius: \u2103; degree:\u00b0
-                    intent.putExtra(EXTRA_ROLL_DATA, new String(dataRoll) + "\n"
-                            + stringBuilder.toString());
-                    sendBroadcast(intent);
-                }
+        mListeners.onSample(address, sample);
+        final String extra = sampleExtra(sample.channel);
+        if (mBroadcastsEnabled && extra != null) {
+            final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+            intent.putExtra(EXTRA_ADDRESS, address);
+            intent.putExtra(extra, sampleText(sample.channel, sample.value));
+            sendBroadcast(intent);
+        }
+    }
+
+    void dispatchWriteAck(String address, UUID characteristic, byte[] dataSent, int status) {
+        mListeners.onWriteAck(address, characteristic, status);
+        if (mBroadcastsEnabled) {
+            final Intent intent = new Intent(ACTION_DATA_SENT);
+            intent.putExtra(EXTRA_ADDRESS, address);
+            //onWrite: check the characteristic's value to see if it is sent successfully
+            if (dataSent != null && dataSent.length >= 2) {
+                intent.putExtra(EXTRA_DATA_SENT, new String(dataSent) + "\n"
+                        + SampleDecoder.decodeInt16Le(dataSent, 0));
             }
+            sendBroadcast(intent);
+        }
+    }
+
+    //onDoubleTap
+    void onDoubleTap(String address) {
+        wakeUpScr();
+        toNotify();
+    }
+
+    private void broadcastUpdate(final String action, final String address) {
+        if (!mBroadcastsEnabled) {
+            return;
+        }
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
+    // The String the sensor extras have always carried.  Only built for broadcasts, which are
+    // opt-in and off the listener path.
+    private static String sampleText(int channel, short value) {
+        final byte[] raw = {(byte) value, (byte) (value >> 8)};
+        final String unit = channel == SensorSample.CHANNEL_TEMP ? "\u2103" : "\u00b0";
+        return new String(raw) + "\n" + String.format(Locale.US, "%d.%d %s",
+                value / SensorSample.SCALE, value % SensorSample.SCALE, unit);
+    }
+
+    private static String sampleExtra(int channel) {
+        switch (channel) {
+            case SensorSample.CHANNEL_ROLL:
+                return EXTRA_ROLL_DATA;
+            case SensorSample.CHANNEL_PITCH:
+                return EXTRA_PITCH_DATA;
+            case SensorSample.CHANNEL_TEMP:
+                return EXTRA_TEMP_DATA;
+            default:
+                // Channels of other boards are only delivered to listeners.
+                return null;
+        }
+    }
+
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
@@ -247,6 +378,13 @@ public class BluetoothLeService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    @Override
+    public void onDestroy() {
+        stopRecording();
+        mIngestion.stop();
+        super.onDestroy();
+    }
+
     //get the bluetooth adapter
     public boolean initialize() {
         // For API level 18 and above, get a reference to BluetoothAdapter through
@@ -264,174 +402,501 @@ public class BluetoothLeService extends Service {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
             return false;
         }
+        if (mAttributeCache == null) {
+            mAttributeCache = new GattAttributeCache(this);
+            loadAttributeProfiles();
+        }
 
         return true;
     }
 
+    /**
+     * Connects to a device, or reconnects if it was connected before.  Other connections are
+     * left alone.
+     */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        final GattTransport.Factory transports = mTransportFactory;
+        if ((transports == null && mBluetoothAdapter == null) || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+        mIngestion.start();
+        GattConnection connection = mConnections.get(address);
+        if (connection == null) {
+            connection = new GattConnection(mConnectionHost, address, mNextConnectionIndex++,
+                    mTimer, transports != null ? transports : mAndroidTransports, mIngestion);
+            connection.setMotorWriteWithoutResponse(mMotorWriteWithoutResponse);
+            connection.setLinkProfile(mLinkProfile);
+            mConnections.put(address, connection);
+            final SessionRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.declareDevice(connection.getIndex(), address);
             }
         }
+        return connection.connect();
+    }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+    /**
+     * Makes devices connected from now on use transports from {@code factory} instead of
+     * Bluetooth, e.g. {@link SimulatedPeripheral}s to exercise the app without a board.
+     * Pass null to go back to Bluetooth.  Devices already known keep their transport until
+     * they are closed.
+     */
+    void setTransportFactory(GattTransport.Factory factory) {
+        mTransportFactory = factory;
     }
 
+    /** Disconnects from one device. */
+    public void disconnect(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
 
+    /** Disconnects from every device. */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null && mTransportFactory == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        for (GattConnection connection : mConnections.values()) {
+            connection.disconnect();
+        }
+    }
+
+    /** Closes one device's GATT client and forgets the device. */
+    public void close(String address) {
+        GattConnection connection = mConnections.remove(address);
+        if (connection != null) {
+            connection.close();
+        }
     }
 
+    /**
+     * Starts recording every decoded sample into a new session directory under the app's
+     * files directory.  Samples are handed to a background writer, so recording doesn't slow
+     * down sample ingestion.
+     *
+     * @return the session directory, or null if recording could not be started.
+     */
+    public synchronized File startRecording() {
+        if (mRecorder != null) {
+            return mRecorder.getDirectory();
+        }
+        final String name = "session-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        final SessionRecorder recorder =
+                new SessionRecorder(new File(new File(getFilesDir(), "recordings"), name));
+        try {
+            recorder.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start recording", e);
+            return null;
+        }
+        for (GattConnection connection : mConnections.values()) {
+            recorder.declareDevice(connection.getIndex(), connection.getAddress());
+        }
+        mRecorder = recorder;
+        Log.i(TAG, "Recording to " + recorder.getDirectory());
+        return recorder.getDirectory();
+    }
 
-    public void close() {
-        if (mBluetoothGatt == null) {
+    /** Stops recording and syncs the session to disk. */
+    public synchronized void stopRecording() {
+        final SessionRecorder recorder = mRecorder;
+        if (recorder == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mRecorder = null;
+        recorder.stop();
+        if (recorder.getError() != null) {
+            mRecordingFailure = recorder.getDirectory() + " after "
+                    + recorder.getRecordsWritten() + " records: " + recorder.getError();
+            Log.e(TAG, "Recording failed", recorder.getError());
+        }
+        Log.i(TAG, "Recorded " + recorder.getRecordsWritten() + " records, dropped "
+                + recorder.getDroppedCount());
     }
 
-//      read Roll value
-    public void readRollCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    // The writer of a recording still in progress stopped on an I/O error.
+    private synchronized void onRecordingFailed(SessionRecorder recorder) {
+        if (mRecorder != recorder) {
             return;
         }
-        /*check if the service is available on the device*/
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(
-                UUID.fromString("42821a40-e477-11e2-82d0-0002a5d5c51b")); // Service for Temp,Roll,Pitch
-        if(mCustomService == null){
-            Log.w(TAG, "Custom BLE Service not found");
-            return;
+        mRecorder = null;
+        recorder.stop();
+        mRecordingFailure = recorder.getDirectory() + " after " + recorder.getRecordsWritten()
+                + " records: " + recorder.getError();
+        Log.e(TAG, "Recording to " + recorder.getDirectory() + " failed", recorder.getError());
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
+    /** Closes every GATT client. */
+    public void close() {
+        for (GattConnection connection : mConnections.values()) {
+            connection.close();
         }
-        /*get the read characteristic from the service*/
-        BluetoothGattCharacteristic mRollChara = mCustomService.getCharacteristic(UUID_ROLL_MEASUREMENT);
+        mConnections.clear();
+        mHandler.removeCallbacks(mStatsRunnable);
+    }
 
-        if(!mBluetoothGatt.readCharacteristic(mRollChara)){
-            Log.w(TAG, "Failed to read Roll characteristic");
+    /** Returns the addresses of all devices the service holds a GATT client for. */
+    public List<String> getDeviceAddresses() {
+        return new ArrayList<String>(mConnections.keySet());
+    }
+
+    /**
+     * @return one of the {@code BluetoothProfile.STATE_*} constants.
+     */
+    public int getConnectionState(String address) {
+        GattConnection connection = mConnections.get(address);
+        return connection == null
+                ? BluetoothProfile.STATE_DISCONNECTED : connection.getConnectionState();
+    }
+
+    private GattConnection getConnection(String address) {
+        GattConnection connection = mConnections.get(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection to " + address);
         }
+        return connection;
+    }
+
+//      read Roll value
+    public void readRollCharacteristic() {
+        readCharacteristic(GattHandles.HANDLE_ROLL);
     }
 //      read Pitch value
     public void readPitchCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        /*check if the service is available on the device*/
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(
-                UUID.fromString("42821a40-e477-11e2-82d0-0002a5d5c51b")); // Service for Temp,Roll,Pitch
-        if(mCustomService == null){
-            Log.w(TAG, "Custom BLE Service not found");
-            return;
-        }
-        /*get the read characteristic from the service*/
-        BluetoothGattCharacteristic mPitchChara = mCustomService.getCharacteristic(UUID_PITCH_MEASUREMENT);
-
-        if(!mBluetoothGatt.readCharacteristic(mPitchChara)){
-            Log.w(TAG, "Failed to read Pitch characteristic");
-        }
+        readCharacteristic(GattHandles.HANDLE_PITCH);
     }
 //      read Temperature value
     public void readTempCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+        readCharacteristic(GattHandles.HANDLE_TEMP);
+    }
+
+    private void readCharacteristic(int handle) {
+        for (GattConnection connection : mConnections.values()) {
+            connection.readCharacteristic(handle);
         }
-        /*check if the service is available on the device*/
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(
-                UUID.fromString("42821a40-e477-11e2-82d0-0002a5d5c51b")); // Service for Temp,Roll,Pitch
-        if(mCustomService == null){
-            Log.w(TAG, "Custom BLE Service not found");
-            return;
+    }
+
+    /**
+     * Starts streaming roll, pitch and temperature from every device.  Devices with the packed
+     * sensor frame characteristic stream through it, many samples per notification; otherwise
+     * characteristics that support notify or indicate are subscribed through their CCCD and
+     * delivered via onCharacteristicChanged, and the rest are polled by the service.  If
+     * services haven't been discovered yet, streaming starts as soon as they are.
+     */
+    public void startSensorStreaming() {
+        for (GattConnection connection : mConnections.values()) {
+            connection.startSensorStreaming();
         }
-        /*get the read characteristic from the service*/
-        BluetoothGattCharacteristic mTempChara = mCustomService.getCharacteristic(UUID_TEMP_MEASUREMENT);
+    }
 
-        if(!mBluetoothGatt.readCharacteristic(mTempChara)){
-            Log.w(TAG, "Failed to read Temperature characteristic");
+    /** Starts streaming from one device; see {@link #startSensorStreaming()}. */
+    public void startSensorStreaming(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.startSensorStreaming();
         }
     }
 
-    public void writeCharacteristic(int pwm, int speedRot) {
-//    public void writeCharacteristic(int pwm) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    /**
+     * Stops streaming: unsubscribes from the sensor characteristics and stops polling.
+     */
+    public void stopSensorStreaming() {
+        for (GattConnection connection : mConnections.values()) {
+            connection.stopSensorStreaming();
         }
-        /*check if the service is available on the device*/
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(UUID_SAMPLE_SERVICE);
-        if(mCustomService == null){
-            Log.w(TAG, "Custom BLE Service not found");
-            return;
+    }
+
+    public void stopSensorStreaming(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.stopSensorStreaming();
         }
-        /*get the write characteristic from the service*/
-        BluetoothGattCharacteristic mWriteChara = mCustomService.getCharacteristic(UUID_SAMPLE_CHARA);
-        if(mWriteChara == null){
-            Log.w(TAG, "Custom BLE characteristic not found");
-            return;
+    }
+
+    /**
+     * Sends the motor command to every device.  Commands are latest-value-wins: call this as
+     * often as the control changes; values superseded while a write is in flight, and repeats
+     * of the value last sent, are never written.
+     */
+    public void writeCharacteristic(int pwm, int speedRot) {
+        for (GattConnection connection : mConnections.values()) {
+            connection.writeMotor(pwm, speedRot);
         }
+    }
 
-        byte[] values = new byte[2];
-        values[0] = (byte)pwm;
-        values[1] = (byte)speedRot;
-        mWriteChara.setValue(values);
-        mWriteChara.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    public void writeCharacteristic(String address, int pwm, int speedRot) {
+        GattConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.writeMotor(pwm, speedRot);
+        }
+    }
 
-        if(!mBluetoothGatt.writeCharacteristic(mWriteChara)){
-            Log.w(TAG, "Failed to Write");
+    /**
+     * Sends motor commands as writes without response where the device supports it.  This
+     * trades the per-write acknowledgement for lower latency; off by default.
+     */
+    public void setMotorWriteWithoutResponse(boolean enabled) {
+        mMotorWriteWithoutResponse = enabled;
+        for (GattConnection connection : mConnections.values()) {
+            connection.setMotorWriteWithoutResponse(enabled);
         }
     }
 
     //double Tap characteristic's notify feature
+    // Idempotent: the CCCD is only written when the state changes, and the subscription is
+    // restored after a reconnect.
     public void setDoubleTapCharacteristic(boolean enabled){
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+        for (GattConnection connection : mConnections.values()) {
+            connection.setDoubleTapNotification(enabled);
         }
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(
-                UUID_DT_SERVICE);
-        if(mCustomService == null){
-            Log.w(TAG, "Double Tap Service not found");
+    }
+
+    /**
+     * Registers a listener for connection events, decoded samples and write acks from every
+     * device.
+     *
+     * @param handler thread to deliver events on, or null to deliver them directly on the
+     *                GATT callback thread, and samples on the ingestion thread.
+     */
+    public void addListener(GattEventListener listener, Handler handler) {
+        addListener(listener, handler, null);
+    }
+
+    /**
+     * Registers a listener for events from a subset of devices.
+     *
+     * @param addresses the devices to listen to, or null for all of them.
+     */
+    public void addListener(GattEventListener listener, Handler handler,
+                            Collection<String> addresses) {
+        addListener(listener, handler, addresses, GattEventListener.EVENT_ALL);
+    }
+
+    /**
+     * Registers a listener for some kinds of event only.  Events left out never reach the
+     * listener or its {@code handler}, so e.g. a main-thread listener that leaves out
+     * {@link GattEventListener#EVENT_SAMPLES} costs nothing per sample.
+     *
+     * @param events the {@code GattEventListener.EVENT_*} flags of the events to deliver.
+     */
+    public void addListener(GattEventListener listener, Handler handler,
+                            Collection<String> addresses, int events) {
+        Registration registration;
+        synchronized (mRegistrations) {
+            if (mRegistrations.containsKey(listener)) {
+                return;
+            }
+            registration = new Registration();
+            GattEventListener registered = listener;
+            if (handler != null) {
+                registration.mHandlerListener = new HandlerGattEventListener(listener, handler);
+                registered = registration.mHandlerListener;
+            }
+            if (addresses != null) {
+                registered = new FilteredGattEventListener(registered,
+                        new HashSet<String>(addresses));
+            }
+            registration.mRegistered = registered;
+            mRegistrations.put(listener, registration);
+        }
+        mListeners.add(registration.mRegistered, events);
+    }
+
+    public void removeListener(GattEventListener listener) {
+        Registration registration;
+        synchronized (mRegistrations) {
+            registration = mRegistrations.remove(listener);
+        }
+        if (registration == null) {
             return;
         }
-        BluetoothGattCharacteristic mDtChara = mCustomService.getCharacteristic(
-                UUID_DOUBLE_TAP_CHARA);
-        mBluetoothGatt.setCharacteristicNotification(mDtChara,enabled);
+        mListeners.remove(registration.mRegistered);
+        if (registration.mHandlerListener != null) {
+            registration.mHandlerListener.detach();
+        }
+    }
+
+    // What addListener put into the fanout for a caller's listener.
+    private static class Registration {
+        GattEventListener mRegistered;
+        HandlerGattEventListener mHandlerListener;
+    }
+
+    /**
+     * Turns the ACTION_* broadcasts on or off.  They are off by default; they exist for
+     * components that can't bind to the service and are much slower than a listener.
+     */
+    public void setBroadcastsEnabled(boolean enabled) {
+        mBroadcastsEnabled = enabled;
+    }
+
+    /**
+     * Sets what happens to sensor values arriving faster than the ingestion thread decodes and
+     * dispatches them, once its queue is full: one of the {@code IngestionPipeline.POLICY_*}
+     * constants.  Dropped values are counted in {@link GattMetrics#INGEST_DROPS}.
+     */
+    public void setIngestionPolicy(int policy) {
+        mIngestion.setPolicy(policy);
+    }
+
+    /**
+     * Returns the recent history of one sensor channel of a device, or null if the service has
+     * no connection to it.  The buffer is written by the service; callers only read from it.
+     *
+     * @param channel one of the {@code SensorSample.CHANNEL_*} constants.
+     */
+    public SampleRingBuffer getHistory(String address, int channel) {
+        GattConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.getHistory(channel);
+    }
+
+    /**
+     * Returns throughput and latency of one connection, or null if there is none.
+     */
+    public ConnectionStats getConnectionStats(String address) {
+        GattConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.getStats();
+    }
+
+    /**
+     * Returns throughput and latency summed over all connections.
+     */
+    public ConnectionStats getAggregateStats() {
+        ConnectionStats total = new ConnectionStats();
+        for (GattConnection connection : mConnections.values()) {
+            total.add(connection.getStats());
+        }
+        return total;
+    }
+
+    /**
+     * Returns a copy of a device's counters and latency histograms, or null if it isn't known.
+     */
+    public GattMetrics getMetrics(String address) {
+        GattConnection connection = mConnections.get(address);
+        if (connection == null) {
+            return null;
+        }
+        GattMetrics copy = new GattMetrics();
+        copy.add(connection.getMetrics());
+        return copy;
+    }
+
+    /** Returns counters and latency histograms summed over all connections. */
+    public GattMetrics getAggregateMetrics() {
+        GattMetrics total = new GattMetrics();
+        for (GattConnection connection : mConnections.values()) {
+            total.add(connection.getMetrics());
+        }
+        return total;
+    }
+
+    /**
+     * Prints every connection's stats and metrics, e.g. for
+     * {@code adb shell dumpsys activity service .BluetoothLeService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Connections: " + mConnections.size());
+        for (GattConnection connection : mConnections.values()) {
+            writer.println(connection.getAddress() + ", state "
+                    + connection.getConnectionState() + ", MTU " + connection.getMtu()
+                    + ", profile " + LinkProfile.nameOf(connection.getLinkProfile()));
+            writer.println("  " + connection.getStats());
+            connection.getMetrics().dump(writer, "  ");
+        }
+        writer.println("Ingestion: " + mIngestion);
+        final SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            writer.println("Recording: " + recorder.getDirectory() + ", "
+                    + recorder.getRecordsWritten() + " records, "
+                    + recorder.getDroppedCount() + " dropped"
+                    + (recorder.isRunning() ? "" : ", failed: " + recorder.getError()));
+        }
+        if (mRecordingFailure != null) {
+            writer.println("Last failed recording: " + mRecordingFailure);
+        }
+        writer.println("All:");
+        writer.println("  " + getAggregateStats());
+        getAggregateMetrics().dump(writer, "  ");
+        for (int profile = 0; profile < LinkProfile.COUNT; profile++) {
+            LinkProfileStats stats = getLinkProfileStats(profile);
+            if (stats.activeNanos > 0) {
+                writer.println("  " + stats);
+            }
+        }
+    }
 
-        if(UUID_DOUBLE_TAP_CHARA.equals(mDtChara.getUuid())){
-            BluetoothGattDescriptor descriptor = mDtChara.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    /**
+     * Decodes values of {@code characteristic}, and encodes commands written to it, with
+     * {@code codec} on every device, including devices connected later.  This is how another
+     * board's characteristics are supported.  The codec is shared by all connections, so it
+     * must not keep per-link state.
+     */
+    public void registerCodec(UUID characteristic, CharacteristicCodec codec) {
+        mCodecs.put(characteristic, codec);
+        for (GattConnection connection : mConnections.values()) {
+            connection.registerCodec(characteristic, codec);
         }
+    }
+
+    /**
+     * Switches every device, and devices connected later, to a {@link LinkProfile}.  Connections
+     * start out {@link LinkProfile#BALANCED}.
+     */
+    public void setLinkProfile(int profile) {
+        LinkProfile.check(profile);
+        mLinkProfile = profile;
+        for (GattConnection connection : mConnections.values()) {
+            connection.setLinkProfile(profile);
+        }
+    }
+
+    public void setLinkProfile(String address, int profile) {
+        LinkProfile.check(profile);
+        GattConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.setLinkProfile(profile);
+        }
+    }
+
+    /**
+     * Returns the device's current {@link LinkProfile}, or -1 if it isn't managed by the
+     * service.
+     */
+    public int getLinkProfile(String address) {
+        GattConnection connection = mConnections.get(address);
+        return connection == null ? -1 : connection.getLinkProfile();
+    }
+
+    /**
+     * Returns the sample rate and GATT round-trip time observed while {@code profile} was in
+     * effect, summed over all connections.
+     */
+    public LinkProfileStats getLinkProfileStats(int profile) {
+        LinkProfile.check(profile);
+        LinkProfileStats total = new LinkProfileStats();
+        total.profile = profile;
+        for (GattConnection connection : mConnections.values()) {
+            total.add(connection.getLinkProfileStats(profile));
+        }
+        return total;
+    }
 
+    /**
+     * Returns the number of GATT operations completed per second over all connections.
+     */
+    public float getOperationsPerSecond() {
+        return getAggregateStats().operationsPerSecond;
     }
 
     //Function to power up the screen
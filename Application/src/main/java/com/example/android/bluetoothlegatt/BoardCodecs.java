@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Codecs of the sensor board's own characteristics, installed on every connection.  Other
+ * boards are supported by registering their codecs through
+ * {@link BluetoothLeService#registerCodec}.
+ */
+public final class BoardCodecs {
+    // Roll, pitch and temperature are int16 hundredths.
+    public static final ScalarCodec ROLL = ScalarCodec.sint16(SensorSample.CHANNEL_ROLL);
+    public static final ScalarCodec PITCH = ScalarCodec.sint16(SensorSample.CHANNEL_PITCH);
+    public static final ScalarCodec TEMP = ScalarCodec.sint16(SensorSample.CHANNEL_TEMP);
+
+    /** Motor command: PWM in the high byte and speed in the low byte, sent big-endian. */
+    public static final ScalarCodec MOTOR_COMMAND = new ScalarCodec(ScalarCodec.CHANNEL_NONE,
+            ScalarCodec.FORMAT_UINT16, true, 1, 1);
+
+    private BoardCodecs() {
+    }
+
+    /**
+     * Registers the board's codecs in {@code table}.  The frame decoder keeps per-link state,
+     * so every connection passes its own.
+     */
+    public static void install(CodecTable table, PackedFrameDecoder frameDecoder) {
+        table.put(UUID.fromString(SampleGattAttributes.ROLL_MEASUREMENT), ROLL);
+        table.put(UUID.fromString(SampleGattAttributes.PITCH_MEASUREMENT), PITCH);
+        table.put(UUID.fromString(SampleGattAttributes.TEMP_MEASUREMENT), TEMP);
+        table.put(UUID.fromString(SampleGattAttributes.SAMPLE_CHARA), MOTOR_COMMAND);
+        table.put(UUID.fromString(SampleGattAttributes.SENSOR_FRAME), frameDecoder);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Converts the value of one characteristic to and from what the app works with: decoded
+ * values become {@link SensorSample}s, and commands are encoded into the bytes to write.
+ * Codecs are looked up by characteristic UUID in a {@link CodecTable}, so supporting a new
+ * board means registering its codecs rather than adding cases to the GATT callbacks.
+ *
+ * <p>Implementations must not allocate in {@link #decode} or {@link #encode}; both run for
+ * every value, {@code decode} on the service's ingestion thread.  The value passed to
+ * {@code decode} is reused afterwards, so codecs must not keep it.
+ */
+public interface CharacteristicCodec {
+    /** Receives every decoded sample; {@code sample} is reused for the next one. */
+    interface Sink {
+        void onSample(SensorSample sample);
+    }
+
+    /**
+     * Decodes a value read or notified by the peripheral, handing each sample to {@code sink}.
+     *
+     * @param receivedNanos {@link System#nanoTime()} at which the value arrived.
+     * @return the number of samples decoded, or -1 if the value is malformed.
+     */
+    int decode(byte[] value, long receivedNanos, SensorSample out, Sink sink);
+
+    /** Length in bytes of an encoded command, or 0 if the codec doesn't encode commands. */
+    int getCommandLength();
+
+    /**
+     * Encodes a command into the start of {@code out}.
+     *
+     * @return the number of bytes written, or -1 if the codec doesn't encode commands or
+     *     {@code out} is too short.
+     */
+    int encode(int command, byte[] out);
+
+    /** Forgets per-link state, e.g. after a reconnect.  Stateless codecs do nothing. */
+    void reset();
+}
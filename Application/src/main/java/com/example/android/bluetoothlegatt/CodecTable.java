@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Dispatch table from characteristic UUID to its {@link CharacteristicCodec}.  Lookups probe
+ * an open-addressing table keyed by the two halves of the UUID, so they are O(1) and don't
+ * allocate.  Registering copies the table and publishes the copy, which lets codecs be added
+ * while other threads are looking them up.
+ */
+public final class CodecTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Immutable once published; a null codec marks an empty slot.
+    private static final class Slots {
+        final long[] msb;
+        final long[] lsb;
+        final CharacteristicCodec[] codecs;
+        final int size;
+
+        Slots(int capacity, int size) {
+            msb = new long[capacity];
+            lsb = new long[capacity];
+            codecs = new CharacteristicCodec[capacity];
+            this.size = size;
+        }
+    }
+
+    private volatile Slots mSlots = new Slots(INITIAL_CAPACITY, 0);
+
+    /** Registers {@code codec} for a characteristic, replacing any codec it had. */
+    public synchronized void put(UUID characteristic, CharacteristicCodec codec) {
+        if (codec == null) {
+            throw new NullPointerException("codec");
+        }
+        final long msb = characteristic.getMostSignificantBits();
+        final long lsb = characteristic.getLeastSignificantBits();
+        final Slots old = mSlots;
+        final boolean replacing = find(old, msb, lsb) >= 0;
+        int capacity = old.codecs.length;
+        if (!replacing && (old.size + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+        final Slots slots = new Slots(capacity, replacing ? old.size : old.size + 1);
+        for (int i = 0; i < old.codecs.length; i++) {
+            if (old.codecs[i] != null) {
+                insert(slots, old.msb[i], old.lsb[i], old.codecs[i]);
+            }
+        }
+        insert(slots, msb, lsb, codec);
+        mSlots = slots;
+    }
+
+    /** Registers every codec of {@code other}, replacing codecs of the same characteristics. */
+    public synchronized void putAll(CodecTable other) {
+        final Slots slots = other.mSlots;
+        for (int i = 0; i < slots.codecs.length; i++) {
+            if (slots.codecs[i] != null) {
+                put(new UUID(slots.msb[i], slots.lsb[i]), slots.codecs[i]);
+            }
+        }
+    }
+
+    /** Returns the codec of a characteristic, or null if it has none. */
+    public CharacteristicCodec get(UUID characteristic) {
+        final Slots slots = mSlots;
+        final int slot = find(slots, characteristic.getMostSignificantBits(),
+                characteristic.getLeastSignificantBits());
+        return slot < 0 ? null : slots.codecs[slot];
+    }
+
+    /** Resets every codec, e.g. after a reconnect. */
+    public void reset() {
+        final CharacteristicCodec[] codecs = mSlots.codecs;
+        for (int i = 0; i < codecs.length; i++) {
+            if (codecs[i] != null) {
+                codecs[i].reset();
+            }
+        }
+    }
+
+    public int size() {
+        return mSlots.size;
+    }
+
+    private static int find(Slots slots, long msb, long lsb) {
+        final int mask = slots.codecs.length - 1;
+        int slot = UuidRegistry.slotOf(msb, lsb, mask);
+        while (slots.codecs[slot] != null) {
+            if (slots.msb[slot] == msb && slots.lsb[slot] == lsb) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static void insert(Slots slots, long msb, long lsb, CharacteristicCodec codec) {
+        final int mask = slots.codecs.length - 1;
+        int slot = UuidRegistry.slotOf(msb, lsb, mask);
+        while (slots.codecs[slot] != null
+                && (slots.msb[slot] != msb || slots.lsb[slot] != lsb)) {
+            slot = (slot + 1) & mask;
+        }
+        slots.msb[slot] = msb;
+        slots.lsb[slot] = lsb;
+        slots.codecs[slot] = codec;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Locale;
+
+/**
+ * Point-in-time throughput and latency figures for one connection, or the sum over all of
+ * them.  Obtained from {@link BluetoothLeService#getConnectionStats(String)} and
+ * {@link BluetoothLeService#getAggregateStats()}.
+ */
+public class ConnectionStats {
+    public int connections;
+    public float operationsPerSecond;
+    public long completed;
+    public long failed;
+    public long timedOut;
+    public long dropped;
+    public long samples;
+    /** Packed sensor frames received, and frames missing from their sequence numbers. */
+    public long frames;
+    public long lostFrames;
+    /** Mean issue-to-completion time of GATT operations. */
+    public long meanLatencyNanos;
+    public long maxLatencyNanos;
+    /** Motor commands submitted, and how many of them were actually written. */
+    public long motorCommands;
+    public long motorWrites;
+    /** CCCD writes issued, and subscription requests that needed none. */
+    public long cccdWrites;
+    public long cccdSkipped;
+    /** Completed reconnects after link loss, and the attempts they took. */
+    public long reconnects;
+    public long reconnectAttempts;
+    /** Time from link loss until services were discovered again. */
+    public long meanReconnectNanos;
+    public long maxReconnectNanos;
+    /** Discoveries that matched the cached GATT layout, and those that didn't. */
+    public long cacheHits;
+    public long cacheMisses;
+    /** Time from the last connect to its first sample; the maximum when summed. */
+    public long firstSampleNanos;
+
+    /** Adds another connection's figures, weighting mean latency by completed operations. */
+    void add(ConnectionStats other) {
+        final long total = completed + other.completed;
+        if (total > 0) {
+            meanLatencyNanos = (meanLatencyNanos * completed
+                    + other.meanLatencyNanos * other.completed) / total;
+        }
+        connections += other.connections;
+        operationsPerSecond += other.operationsPerSecond;
+        completed = total;
+        failed += other.failed;
+        timedOut += other.timedOut;
+        dropped += other.dropped;
+        samples += other.samples;
+        frames += other.frames;
+        lostFrames += other.lostFrames;
+        maxLatencyNanos = Math.max(maxLatencyNanos, other.maxLatencyNanos);
+        motorCommands += other.motorCommands;
+        motorWrites += other.motorWrites;
+        cccdWrites += other.cccdWrites;
+        cccdSkipped += other.cccdSkipped;
+        final long totalReconnects = reconnects + other.reconnects;
+        if (totalReconnects > 0) {
+            meanReconnectNanos = (meanReconnectNanos * reconnects
+                    + other.meanReconnectNanos * other.reconnects) / totalReconnects;
+        }
+        reconnects = totalReconnects;
+        reconnectAttempts += other.reconnectAttempts;
+        maxReconnectNanos = Math.max(maxReconnectNanos, other.maxReconnectNanos);
+        cacheHits += other.cacheHits;
+        cacheMisses += other.cacheMisses;
+        firstSampleNanos = Math.max(firstSampleNanos, other.firstSampleNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d connection(s): %.1f ops/s, %d completed, %d failed, "
+                + "%d timed out, %d dropped, %d samples, %d frames (%d lost), "
+                + "latency mean %.1fms max %.1fms, %d/%d motor commands written, "
+                + "%d CCCD writes (%d skipped), %d reconnects in %d attempts, "
+                + "reconnect mean %.1fms max %.1fms, attribute cache %d/%d hits, "
+                + "first sample after %.1fms",
+                connections, operationsPerSecond, completed, failed, timedOut, dropped,
+                samples, frames, lostFrames, meanLatencyNanos / 1e6, maxLatencyNanos / 1e6,
+                motorWrites, motorCommands, cccdWrites, cccdSkipped, reconnects,
+                reconnectAttempts, meanReconnectNanos / 1e6, maxReconnectNanos / 1e6, cacheHits,
+                cacheHits + cacheMisses, firstSampleNanos / 1e6);
+    }
+}
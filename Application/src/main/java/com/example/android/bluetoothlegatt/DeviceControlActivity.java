@@ -23,11 +23,9 @@ import android.app.PendingIntent;
 import android.app.TaskStackBuilder;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
+import android.bluetooth.BluetoothProfile;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
@@ -36,6 +34,7 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -45,6 +44,10 @@ import android.widget.SeekBar;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -61,10 +64,19 @@ public class DeviceControlActivity extends Activity {
     private SeekBar speedBar,intensityBar;
     private TextView speedBarValue,intensityBarValue,
             mRollValue,mPitchValue,mTempValue;
+    // One buffer per TextView: setText(char[], int, int) keeps a reference to the array.
+    private final char[] mRollText = new char[SampleFormatter.MAX_LENGTH];
+    private final char[] mPitchText = new char[SampleFormatter.MAX_LENGTH];
+    private final char[] mTempText = new char[SampleFormatter.MAX_LENGTH];
+    // Samples land here as they are decoded and are drawn at most once per display frame, so
+    // the cost of the UI doesn't grow with the sample rate.
+    private final LatestSamples mLatestSamples = new LatestSamples(SensorSample.CHANNEL_COUNT);
+    private final AtomicBoolean mFramePending = new AtomicBoolean();
+    private Choreographer mChoreographer;
     private Button ledSwitch;
     private int pressFlag = 0;
     //BLE
-    private Handler mRollHandler,mPitchHandler,mTempHandler,mDtHandler,mWriteHandler;
+    private final Handler mUiHandler = new Handler();
     private String mDeviceName;
     private String mDeviceAddress;
     private BluetoothLeService mBluetoothLeService;
@@ -79,8 +91,13 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            addListeners();
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            // Roll, pitch and temperature stream as soon as services are discovered.
+            mBluetoothLeService.startSensorStreaming(mDeviceAddress);
+            // Held by the connection and written once services are discovered.
+            sendMotorCommand();
         }
 
         @Override
@@ -89,35 +106,101 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    private void addListeners() {
+        mBluetoothLeService.addListener(mGattEventListener, mUiHandler,
+                Collections.singleton(mDeviceAddress), GattEventListener.EVENT_CONNECTION);
+        mBluetoothLeService.addListener(mSampleListener, null,
+                Collections.singleton(mDeviceAddress), GattEventListener.EVENT_SAMPLES);
+    }
+
+    private void removeListeners() {
+        mBluetoothLeService.removeListener(mGattEventListener);
+        mBluetoothLeService.removeListener(mSampleListener);
+        mChoreographer.removeFrameCallback(mFrameCallback);
+        mFramePending.set(false);
+    }
+
+    // Handles connection events from the Service, delivered on the main thread.  It is
+    // registered without samples, which go through mSampleListener instead.
+    private final GattEventListener mGattEventListener = new GattEventListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
+        public void onConnectionStateChanged(String address, int state) {
+            if (state == BluetoothProfile.STATE_CONNECTED) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
+                // The board starts from whatever the controls show now.
+                sendMotorCommand();
+            } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
                 mConnected = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
-            }  else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayRollData(intent.getStringExtra(BluetoothLeService.EXTRA_ROLL_DATA));
-                displayPitchData(intent.getStringExtra(BluetoothLeService.EXTRA_PITCH_DATA));
-                displayTempData(intent.getStringExtra(BluetoothLeService.EXTRA_TEMP_DATA));
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+        }
+
+        @Override
+        public void onSample(String address, SensorSample sample) {
+        }
+
+        @Override
+        public void onWriteAck(String address, UUID characteristic, int status) {
+        }
+    };
+
+    // Takes samples directly on the service's ingestion thread: keeps the newest per channel
+    // and asks for one frame, however many samples arrive before it is drawn.
+    private final GattEventListener mSampleListener = new GattEventListener() {
+        @Override
+        public void onConnectionStateChanged(String address, int state) {
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+        }
+
+        @Override
+        public void onSample(String address, SensorSample sample) {
+            mLatestSamples.set(sample.channel, sample.value);
+            if (mFramePending.compareAndSet(false, true)) {
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+
+        @Override
+        public void onWriteAck(String address, UUID characteristic, int status) {
+        }
+    };
+
+    // Draws whatever changed since the last frame; runs on the main thread.
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Cleared before reading, so a sample arriving meanwhile asks for the next frame.
+            mFramePending.set(false);
+            int value = mLatestSamples.poll(SensorSample.CHANNEL_ROLL);
+            if (value != LatestSamples.UNCHANGED) {
+                displayRollData((short) value);
+            }
+            value = mLatestSamples.poll(SensorSample.CHANNEL_PITCH);
+            if (value != LatestSamples.UNCHANGED) {
+                displayPitchData((short) value);
+            }
+            value = mLatestSamples.poll(SensorSample.CHANNEL_TEMP);
+            if (value != LatestSamples.UNCHANGED) {
+                displayTempData((short) value);
             }
         }
     };
 
     private void clearUI() {
 //        mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        // Values from the link that just went away shouldn't come back on the next frame.
+        mLatestSamples.discard();
         mRollValue.setText(R.string.no_data);
         mPitchValue.setText(R.string.no_data);
         mTempValue.setText(R.string.no_data);
@@ -127,15 +210,8 @@ public class DeviceControlActivity extends Activity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.custom_layout);
+        mChoreographer = Choreographer.getInstance();
 
-        //read
-        mRollHandler = new Handler();
-        mPitchHandler = new Handler();
-        mTempHandler = new Handler();
-        //notify
-        mDtHandler = new Handler();
-        //write
-        mWriteHandler = new Handler();
 
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
@@ -152,41 +228,40 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
+            addListeners();
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
+            mBluetoothLeService.startSensorStreaming(mDeviceAddress);
+            sendMotorCommand();
         }
-
-        mDtHandler.removeCallbacks(mDtRunnable);
-        mWriteHandler.postDelayed(mWriteRunnable, 200);
-
-        mTempHandler.postDelayed(mTempRunnable, 200);
-        mRollHandler.postDelayed(mRollRunnable,150);
-        mPitchHandler.postDelayed(mPitchRunnable, 300);
-
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+        if (mBluetoothLeService != null) {
+            removeListeners();
+        }
     }
 
     @Override
     protected void onStop(){
         super.onStop();
-        mDtHandler.postDelayed(mDtRunnable, 50);
-        mWriteHandler.removeCallbacks(mWriteRunnable, 200);
-
-        mTempHandler.removeCallbacks(mTempRunnable);
-        mRollHandler.removeCallbacks(mRollRunnable);
-        mPitchHandler.removeCallbacks(mPitchRunnable);
+        if (mBluetoothLeService != null) {
+            // Double tap wakes the screen while we're in the background.  The service keeps
+            // the subscription across reconnects, so once is enough.
+            mBluetoothLeService.setDoubleTapCharacteristic(true);
+            mBluetoothLeService.stopSensorStreaming(mDeviceAddress);
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            removeListeners();
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -211,7 +286,7 @@ public class DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -220,70 +295,15 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
-    private Runnable mRollRunnable = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                mBluetoothLeService.readRollCharacteristic();
-                mRollHandler.postDelayed(this, 150);
-                Log.d("mRollHandler", "Calling on DCA thread");
-            } catch (Exception e){
-                e.printStackTrace();
-            }
-        }
-    };
-    private Runnable mPitchRunnable = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                mBluetoothLeService.readPitchCharacteristic();
-                mPitchHandler.postDelayed(this, 250);
-                Log.d("mPitchHandler", "Calling on DCA thread");
-            } catch (Exception e){
-                e.printStackTrace();
-            }
-        }
-    };
-    private Runnable mTempRunnable = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                mBluetoothLeService.readTempCharacteristic();
-                mTempHandler.postDelayed(this, 300);
-                Log.d("mTempHandler", "Calling on DCA thread");
-            } catch (Exception e){
-                e.printStackTrace();
-            }
-        }
-    };
-
-    private Runnable mDtRunnable = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                mBluetoothLeService.setDoubleTapCharacteristic(true);
-                mDtHandler.postDelayed(this, 10);
-                Log.d("mDtHandler", "Calling on DCA thread");
-            } catch (Exception e){
-                e.printStackTrace();
-            }
+    // Called whenever a control changes; the service only writes values that differ from the
+    // last one sent, so calling it on every SeekBar step is cheap.
+    private void sendMotorCommand() {
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.writeCharacteristic(mDeviceAddress,
+                    intensityBar.getProgress()*pressFlag,speedBar.getProgress());
         }
-    };
+    }
 
-    private Runnable mWriteRunnable = new Runnable() {
-        @Override
-        public void run() {
-            try{
-                mBluetoothLeService.writeCharacteristic(
-                        intensityBar.getProgress()*pressFlag,speedBar.getProgress());
-//                mBluetoothLeService.writeCharacteristic(intensityBar.getProgress());
-                mWriteHandler.postDelayed(this, 200);
-                Log.d("mWriteHandler", "Call on DCA thread");
-            }catch(Exception e){
-                e.printStackTrace();
-            }
-        }
-    };
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -293,38 +313,23 @@ public class DeviceControlActivity extends Activity {
         });
     }
 
-    private void displayRollData(String data) {
-
-        if (data != null) {
-            String toPrint = data.split("\n")[1];
-            mRollValue.setText(toPrint);
-        }
+    private void displayRollData(short hundredths) {
+        int length = SampleFormatter.formatHundredths(
+                hundredths, SampleFormatter.UNIT_DEGREE, mRollText);
+        mRollValue.setText(mRollText, 0, length);
     }
-    private void displayPitchData(String data) {
-        if (data != null) {
-            String toPrint = data.split("\n")[1];
-            mPitchValue.setText(toPrint);
-        }
+    private void displayPitchData(short hundredths) {
+        int length = SampleFormatter.formatHundredths(
+                hundredths, SampleFormatter.UNIT_DEGREE, mPitchText);
+        mPitchValue.setText(mPitchText, 0, length);
     }
-    private void displayTempData(String data) {
-        if (data != null) {
-            String toPrint = data.split("\n")[1];
-            mTempValue.setText(toPrint);
-        }
+    private void displayTempData(short hundredths) {
+        int length = SampleFormatter.formatHundredths(
+                hundredths, SampleFormatter.UNIT_CELSIUS, mTempText);
+        mTempValue.setText(mTempText, 0, length);
     }
 
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        intentFilter.addAction(BluetoothLeService.ACTION_TONOTIFY);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_SENT);
-        return intentFilter;
-    }
-
     private void initUI(){
         speedBar = (SeekBar) findViewById(R.id.speedBar);
         speedBarValue = (TextView) findViewById(R.id.speedCurrent);
@@ -345,6 +350,7 @@ public class DeviceControlActivity extends Activity {
                 }else{
                     pressFlag = 0;
                 }
+                sendMotorCommand();
             }
         });
 
@@ -359,6 +365,7 @@ public class DeviceControlActivity extends Activity {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progressValue, boolean fromUser) {
                 progress = progressValue - 10;
+                sendMotorCommand();
             }
 
             @Override
@@ -380,7 +387,7 @@ public class DeviceControlActivity extends Activity {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progressValue, boolean fromUser) {
                 progress = progressValue;
-
+                sendMotorCommand();
             }
 
             @Override
@@ -37,6 +37,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -44,12 +45,20 @@ import java.util.ArrayList;
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
+    private DeviceScanner mDeviceScanner;
     private boolean mScanning;
     private Handler mHandler;
 
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
+    // The device list is refreshed at most this often while scanning (10 frames per second).
+    private static final long PUBLISH_PERIOD = 100;
+
+    // Scan results are deduplicated here off the main thread, on the scanner's thread; the
+    // list only sees snapshots, taken by mPublishRunnable.
+    private final ScanAggregator<BluetoothDevice> mScanAggregator =
+            new ScanAggregator<BluetoothDevice>();
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -76,6 +85,11 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+
+        mDeviceScanner = new DeviceScanner(mBluetoothAdapter, mScanListener);
+        mDeviceScanner.setExtraFilters(
+                Arrays.asList(getResources().getStringArray(R.array.scan_filter_names)),
+                Arrays.asList(getResources().getStringArray(R.array.scan_filter_addresses)));
     }
 
     @Override
@@ -98,6 +112,7 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
+                mScanAggregator.clear();
                 mLeDeviceListAdapter.clear();
                 scanLeDevice(true);
                 break;
@@ -140,9 +155,18 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        mScanAggregator.clear();
         mLeDeviceListAdapter.clear();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mDeviceScanner != null) {
+            mDeviceScanner.release();
+        }
+    }
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
@@ -151,8 +175,9 @@ public class DeviceScanActivity extends ListActivity {
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mDeviceScanner.stop();
             mScanning = false;
+            mHandler.removeCallbacks(mPublishRunnable);
         }
         startActivity(intent);
     }
@@ -164,39 +189,59 @@ public class DeviceScanActivity extends ListActivity {
                 @Override
                 public void run() {
                     mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                    mDeviceScanner.stop();
                     invalidateOptionsMenu();
                 }
             }, SCAN_PERIOD);
 
             mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mDeviceScanner.start();
+            mHandler.removeCallbacks(mPublishRunnable);
+            mHandler.post(mPublishRunnable);
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mDeviceScanner.stop();
+            mHandler.removeCallbacks(mPublishRunnable);
+            publishScanResults();
         }
         invalidateOptionsMenu();
     }
 
+    // Runs once per frame while scanning; stops itself once the scan has ended.
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishScanResults();
+            if (mScanning) {
+                mHandler.postDelayed(this, PUBLISH_PERIOD);
+            }
+        }
+    };
+
+    private void publishScanResults() {
+        if (mLeDeviceListAdapter != null && mLeDeviceListAdapter.update(mScanAggregator)) {
+            mLeDeviceListAdapter.notifyDataSetChanged();
+        }
+    }
+
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private ArrayList<ScanAggregator.Entry<BluetoothDevice>> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanAggregator.Entry<BluetoothDevice>>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        /** Takes the aggregator's latest snapshot; returns false if nothing changed. */
+        public boolean update(ScanAggregator<BluetoothDevice> aggregator) {
+            return aggregator.snapshot(mLeDevices);
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).device;
         }
 
         public void clear() {
@@ -210,7 +255,7 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mLeDevices.get(i).device;
         }
 
         @Override
@@ -227,41 +272,39 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            ScanAggregator.Entry<BluetoothDevice> entry = mLeDevices.get(i);
+            BluetoothDevice device = entry.device;
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceRssi.setText(entry.rssi + " dBm");
 
             return view;
         }
     }
 
     // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
+    private final DeviceScanner.Listener mScanListener = new DeviceScanner.Listener() {
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public void onDevice(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            // Only a map update, off the main thread; the list picks this up on its next
+            // frame.
+            mScanAggregator.onResult(device.getAddress(), device, rssi, System.nanoTime());
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 }
\ No newline at end of file
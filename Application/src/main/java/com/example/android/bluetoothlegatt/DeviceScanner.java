@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Scans for the boards this app talks to.  On API 21+ the scan runs on
+ * {@link BluetoothLeScanner} with filters on our service UUIDs and on the configured names and
+ * addresses, so the controller drops other advertisers before they wake the app up; where the
+ * controller can batch results they are delivered in bulk every {@link #REPORT_DELAY}.  Older
+ * releases, and scans the platform refuses, fall back to {@link BluetoothAdapter#startLeScan}
+ * with the same filters applied to the parsed advertisement in the callback.
+ *
+ * <p>{@link BluetoothLeScanner} reports on the main thread, so its results are handed to the
+ * scanner's own thread before they reach the {@link Listener}.  Call {@link #release()} when
+ * done with the scanner.
+ */
+class DeviceScanner {
+    private final static String TAG = DeviceScanner.class.getSimpleName();
+
+    // How long the controller may hold results before reporting them, when it batches.
+    static final long REPORT_DELAY = 500;
+
+    private static final int MSG_RESULT = 1;
+    private static final int MSG_BATCH = 2;
+
+    private static final String[] SERVICE_UUIDS = {
+            SampleGattAttributes.SAMPLE_SERVICE,
+            SampleGattAttributes.DT_SERVICE,
+            SampleGattAttributes.SENSOR_SERVICE,
+    };
+
+    /**
+     * Receives matching advertisements, off the main thread: on the scanner's own thread, or on
+     * the platform's callback thread for legacy scans.
+     */
+    interface Listener {
+        void onDevice(BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final Listener mListener;
+    private final HashSet<String> mNames = new HashSet<String>();
+    private final HashSet<String> mAddresses = new HashSet<String>();
+    private final UUID[] mServiceUuids = new UUID[SERVICE_UUIDS.length];
+    // Parses legacy scan records; only used on the legacy callback thread.
+    private final AdvertisementData mAdvertisement = new AdvertisementData();
+    // Set to a ScanCallback while a scan runs on BluetoothLeScanner.
+    private Object mScanCallback;
+    private boolean mLegacyScanning;
+    private boolean mBatching;
+    // Takes results of BluetoothLeScanner off the main thread.
+    private final HandlerThread mResultThread = new HandlerThread(TAG);
+    private final Handler mResultHandler;
+
+    DeviceScanner(BluetoothAdapter adapter, Listener listener) {
+        mAdapter = adapter;
+        mListener = listener;
+        mResultThread.start();
+        mResultHandler = new Handler(mResultThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                return deliver(msg);
+            }
+        });
+        for (int i = 0; i < SERVICE_UUIDS.length; i++) {
+            mServiceUuids[i] = UUID.fromString(SERVICE_UUIDS[i]);
+        }
+    }
+
+    /**
+     * Also reports devices advertising one of {@code names} or having one of
+     * {@code addresses}, whatever their services.  Takes effect on the next {@link #start()}.
+     */
+    void setExtraFilters(Collection<String> names, Collection<String> addresses) {
+        mNames.clear();
+        mAddresses.clear();
+        if (names != null) {
+            mNames.addAll(names);
+        }
+        if (addresses != null) {
+            for (String address : addresses) {
+                mAddresses.add(address.toUpperCase());
+            }
+        }
+    }
+
+    void start() {
+        stop();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && startFiltered()) {
+            return;
+        }
+        mLegacyScanning = mAdapter.startLeScan(mLeScanCallback);
+    }
+
+    void stop() {
+        if (mScanCallback != null) {
+            stopFiltered();
+        }
+        if (mLegacyScanning) {
+            mAdapter.stopLeScan(mLeScanCallback);
+            mLegacyScanning = false;
+        }
+    }
+
+    /** Stops scanning and ends the scanner's thread, once the results it holds are delivered. */
+    void release() {
+        stop();
+        mResultThread.quitSafely();
+    }
+
+    /** Whether results are currently batched by the controller. */
+    boolean isBatching() {
+        return mScanCallback != null && mBatching;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startFiltered() {
+        final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            return false;
+        }
+        // Filters are OR'ed: a device matching any of them is reported.
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        for (String uuid : SERVICE_UUIDS) {
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(ParcelUuid.fromString(uuid)).build());
+        }
+        for (String name : mNames) {
+            filters.add(new ScanFilter.Builder().setDeviceName(name).build());
+        }
+        for (String address : mAddresses) {
+            if (BluetoothAdapter.checkBluetoothAddress(address)) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+            } else {
+                Log.w(TAG, "Ignoring invalid address filter " + address);
+            }
+        }
+
+        mBatching = mAdapter.isOffloadedScanBatchingSupported();
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setReportDelay(mBatching ? REPORT_DELAY : 0)
+                .build();
+        ScanCallback callback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                mResultHandler.sendMessage(
+                        mResultHandler.obtainMessage(MSG_RESULT, result));
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                mResultHandler.sendMessage(
+                        mResultHandler.obtainMessage(MSG_BATCH, results));
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.w(TAG, "Filtered scan failed: " + errorCode + ", falling back");
+                mScanCallback = null;
+                mLegacyScanning = mAdapter.startLeScan(mLeScanCallback);
+            }
+        };
+        mScanCallback = callback;
+        scanner.startScan(filters, settings, callback);
+        Log.d(TAG, "Filtered scan with " + filters.size() + " filters"
+                + (mBatching ? ", batched" : ""));
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopFiltered() {
+        final ScanCallback callback = (ScanCallback) mScanCallback;
+        mScanCallback = null;
+        final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            // Bluetooth was turned off; the scan is gone already.
+            return;
+        }
+        if (mBatching) {
+            // Deliver what the controller is still holding before the scan goes away.
+            scanner.flushPendingScanResults(callback);
+        }
+        scanner.stopScan(callback);
+    }
+
+    // Runs on mResultThread.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean deliver(Message msg) {
+        switch (msg.what) {
+            case MSG_RESULT:
+                deliver((ScanResult) msg.obj);
+                return true;
+            case MSG_BATCH:
+                @SuppressWarnings("unchecked")
+                final List<ScanResult> results = (List<ScanResult>) msg.obj;
+                for (int i = 0; i < results.size(); i++) {
+                    deliver(results.get(i));
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void deliver(ScanResult result) {
+        final ScanRecord record = result.getScanRecord();
+        mListener.onDevice(result.getDevice(), result.getRssi(),
+                record == null ? null : record.getBytes());
+    }
+
+    // Same test as the ScanFilters of the filtered scan: any of our services, or a configured
+    // name or address.
+    private boolean matches(BluetoothDevice device, byte[] scanRecord) {
+        if (mAddresses.contains(device.getAddress())) {
+            return true;
+        }
+        mAdvertisement.wrap(scanRecord);
+        for (UUID uuid : mServiceUuids) {
+            if (mAdvertisement.hasServiceUuid(uuid)) {
+                return true;
+            }
+        }
+        for (String name : mNames) {
+            if (mAdvertisement.localNameEquals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Legacy scan callback.  Filtering happens here: startLeScan(UUID[], ...) only matches
+    // devices advertising all of the given services, not any of them.
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (matches(device, scanRecord)) {
+                mListener.onDevice(device, rssi, scanRecord);
+            }
+        }
+    };
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Passes on only the events of a fixed set of devices.
+ */
+class FilteredGattEventListener implements GattEventListener {
+    private final GattEventListener mTarget;
+    private final Set<String> mAddresses;
+
+    FilteredGattEventListener(GattEventListener target, Set<String> addresses) {
+        mTarget = target;
+        mAddresses = addresses;
+    }
+
+    @Override
+    public void onConnectionStateChanged(String address, int state) {
+        if (mAddresses.contains(address)) {
+            mTarget.onConnectionStateChanged(address, state);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        if (mAddresses.contains(address)) {
+            mTarget.onServicesDiscovered(address);
+        }
+    }
+
+    @Override
+    public void onSample(String address, SensorSample sample) {
+        if (mAddresses.contains(address)) {
+            mTarget.onSample(address, sample);
+        }
+    }
+
+    @Override
+    public void onWriteAck(String address, UUID characteristic, int status) {
+        if (mAddresses.contains(address)) {
+            mTarget.onWriteAck(address, characteristic, status);
+        }
+    }
+}
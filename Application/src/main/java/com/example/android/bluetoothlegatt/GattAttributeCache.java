@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * What we learned about each device's GATT database on earlier connections, kept in
+ * SharedPreferences by device address: a fingerprint of the service, characteristic and
+ * descriptor layout, the MTU last negotiated with it, and which handles it had notifications
+ * enabled for.
+ *
+ * <p>Android always runs service discovery, so the cache doesn't save that; it saves the round
+ * trips after it.  An entry is only trusted once the fingerprint of the freshly discovered
+ * database matches, and is dropped on a mismatch or a Service Changed indication.
+ */
+class GattAttributeCache {
+    private final static String TAG = GattAttributeCache.class.getSimpleName();
+
+    private static final String PREFERENCES = "gatt_attribute_cache";
+
+    private final SharedPreferences mPreferences;
+
+    GattAttributeCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /** Returns the cached entry for a device, or null. */
+    AttributeCacheEntry get(String address) {
+        final String value = mPreferences.getString(address, null);
+        if (value == null) {
+            return null;
+        }
+        final String[] fields = value.split(":");
+        if (fields.length != 3) {
+            Log.w(TAG, "Dropping unreadable entry for " + address);
+            invalidate(address);
+            return null;
+        }
+        try {
+            AttributeCacheEntry entry = new AttributeCacheEntry();
+            // Written with toHexString, so the fingerprint may use all 64 bits.
+            entry.fingerprint = parseUnsignedHex(fields[0]);
+            entry.mtu = Integer.parseInt(fields[1]);
+            entry.enabledHandles = Integer.parseInt(fields[2], 16);
+            return entry;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Dropping unreadable entry for " + address);
+            invalidate(address);
+            return null;
+        }
+    }
+
+    void put(String address, AttributeCacheEntry entry) {
+        mPreferences.edit().putString(address, Long.toHexString(entry.fingerprint) + ":"
+                + entry.mtu + ":" + Integer.toHexString(entry.enabledHandles)).apply();
+    }
+
+    void invalidate(String address) {
+        mPreferences.edit().remove(address).apply();
+    }
+
+    /**
+     * Hashes the layout of a discovered GATT database: every service, characteristic and
+     * descriptor UUID in discovery order, plus characteristic properties.
+     */
+    static long fingerprint(List<BluetoothGattService> services) {
+        long hash = FNV_OFFSET;
+        for (BluetoothGattService service : services) {
+            hash = mix(hash, service.getUuid());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = mix(hash, characteristic.getUuid());
+                hash = mix(hash, characteristic.getProperties());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    hash = mix(hash, descriptor.getUuid());
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static long mix(long hash, UUID uuid) {
+        return mix(mix(hash, uuid.getMostSignificantBits()), uuid.getLeastSignificantBits());
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    private static long parseUnsignedHex(String value) {
+        if (value.length() > 16) {
+            throw new NumberFormatException(value);
+        }
+        long result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) {
+                throw new NumberFormatException(value);
+            }
+            result = result << 4 | digit;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,993 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One GATT connection managed by {@link BluetoothLeService}: its state, operation queue and
+ * streaming setup.  Requests go out through the connection's {@link GattTransport}, whose
+ * callbacks come back here.  Free of Android APIs: everything platform-specific comes from
+ * the transport, the {@link Host} and the timer, so the same code also runs off-device.
+ *
+ * <p>Given an {@link IngestionPipeline}, the transport's callbacks only copy sensor values into
+ * it; decoding and delivering the samples happens on the pipeline's thread.
+ */
+class GattConnection implements GattTransport.Callback, IngestionPipeline.Consumer {
+    private final static String TAG = GattConnection.class.getSimpleName();
+
+    // Log priorities, same values as android.util.Log.
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+
+    /**
+     * The service side of a connection.  Events are dispatched on the transport's callback
+     * thread, except samples when the connection has an ingestion pipeline: those come from
+     * the pipeline's thread.
+     */
+    interface Host {
+        /** Codecs to install on top of the board's own. */
+        CodecTable getCodecs();
+
+        /** What an earlier connection learned about a device's database, or null. */
+        AttributeCacheEntry getCachedAttributes(String address);
+
+        void putCachedAttributes(String address, AttributeCacheEntry entry);
+
+        void invalidateCachedAttributes(String address);
+
+        void dispatchConnectionState(String address, int state);
+
+        void dispatchServicesDiscovered(String address);
+
+        void dispatchSample(GattConnection connection, SensorSample sample);
+
+        void dispatchWriteAck(String address, UUID characteristic, byte[] dataSent, int status);
+
+        void onDoubleTap(String address);
+
+        /** @param tr exception to log with its stack trace, or null. */
+        void log(int priority, String tag, String message, Throwable tr);
+    }
+
+    // Polling periods used for sensor characteristics that can't notify.
+    private static final long ROLL_POLL_PERIOD = 150;
+    private static final long PITCH_POLL_PERIOD = 250;
+    private static final long TEMP_POLL_PERIOD = 300;
+
+    // Samples of history kept per channel; about 40s at 100Hz.
+    static final int HISTORY_CAPACITY = 4096;
+
+    // A write without response completes as soon as the stack has buffered it, so give up on
+    // it much sooner than on an acknowledged write.
+    private static final long WRITE_NO_RESPONSE_TIMEOUT_MS = 100;
+
+    // Largest MTU worth asking for: 244 bytes of payload, i.e. 39 samples per sensor frame.
+    private static final int REQUESTED_MTU = 247;
+    private static final int DEFAULT_MTU = 23;
+
+    // A direct reconnect attempt that hasn't connected by then is abandoned for the next one;
+    // the stack's own timeout is around 30s.
+    private static final long DIRECT_CONNECT_TIMEOUT_MS = 5000;
+
+    private final Host mHost;
+    private final String mAddress;
+    // Small per-service number that identifies the device in recordings.
+    private final int mIndex;
+    // Runs reconnects, timeouts and polls; the service's main thread on a device.
+    private final GattOperationQueue.Timer mTimer;
+
+    private final GattTransport mTransport;
+    // Where sensor values are decoded and delivered; null to do it on the callback thread.
+    private final IngestionPipeline mIngestion;
+    private final ReconnectPolicy mReconnect = new ReconnectPolicy();
+
+    // Cached state of this device's GATT database: loaded when the link comes up, validated
+    // at discovery, and saved back when the link goes down.  Only touched from GATT callbacks.
+    private AttributeCacheEntry mCacheEntry;
+    private boolean mCacheValidated;
+    private volatile long mCacheHits;
+    private volatile long mCacheMisses;
+    // nanoTime() of the last connect until its first sample arrives, then 0.
+    private volatile long mConnectedAt;
+    private volatile long mFirstSampleNanos;
+    private volatile int mConnectionState = GattTransport.STATE_DISCONNECTED;
+
+    private final GattMetrics mMetrics = new GattMetrics();
+    // nanoTime() of the pending connect attempt and discovery, 0 if none.
+    private volatile long mConnectStartNanos;
+    private volatile long mDiscoveryStartNanos;
+    // Arrival of the last notification per handle, 0 if none on this link; callback thread.
+    private final long[] mLastNotificationNanos = new long[GattHandles.HANDLE_COUNT];
+
+    // GATT clients only take one request at a time; everything is funneled through here.
+    private final GattOperationQueue mOperationQueue;
+    // Whether the transport's handles reflect a discovered database; false while disconnected.
+    private volatile boolean mResolved;
+
+    // Bumped whenever the link goes away.  Values are tagged with it when queued for
+    // ingestion, so ones left over from an earlier link are dropped and codecs are reset on
+    // the decoding thread before the first value of a new one.
+    private final AtomicInteger mLinkGeneration = new AtomicInteger();
+    // Generation the codecs' state belongs to; only touched from the decoding thread.
+    private int mDecodedGeneration;
+
+    // Reused for every decoded value; only touched from the decoding thread, which is the
+    // ingestion thread if there is a pipeline and the GATT callback thread otherwise.
+    private final SensorSample mSample = new SensorSample();
+    private volatile long mSampleCount;
+    private final PackedFrameDecoder mFrameDecoder = new PackedFrameDecoder();
+    // Codec of every characteristic whose values or commands the app understands.
+    private final CodecTable mCodecs = new CodecTable();
+    private final CharacteristicCodec.Sink mSampleSink = new CharacteristicCodec.Sink() {
+        @Override
+        public void onSample(SensorSample sample) {
+            deliverSample();
+        }
+    };
+    private volatile int mMtu = DEFAULT_MTU;
+    // Recent history per sensor channel, fed from the decoding thread.
+    private final SampleRingBuffer[] mHistory = new SampleRingBuffer[SensorSample.CHANNEL_COUNT];
+
+    // Motor commands: only the latest value is sent, one write in flight at a time.
+    private final WriteCoalescer mMotorWriter;
+    private volatile boolean mMotorWriteWithoutResponse;
+
+    // Notification state per handle; CCCDs are only written on transitions.
+    private final SubscriptionManager mSubscriptions;
+
+    private volatile boolean mStreamingRequested;
+
+    // Link profile and what it delivered, all guarded by mProfileStats.  Figures are folded
+    // into the current profile at every checkpoint: profile switches, link up/down and queries.
+    private int mLinkProfile = LinkProfile.BALANCED;
+    private final LinkProfileStats[] mProfileStats = new LinkProfileStats[LinkProfile.COUNT];
+    private boolean mProfileCounting;
+    private long mCheckpointNanos;
+    private long mCheckpointSamples;
+    private long mCheckpointOperations;
+    private long mCheckpointRttNanos;
+    private final ArrayList<PollTask> mPollTasks = new ArrayList<PollTask>();
+
+    /**
+     * @param ingestion pipeline to decode sensor values on, shared between connections, or
+     *                  null to decode them on the transport's callback thread.
+     */
+    GattConnection(Host host, String address, int index, GattOperationQueue.Timer timer,
+                   GattTransport.Factory transports, IngestionPipeline ingestion) {
+        mHost = host;
+        mAddress = address;
+        mIndex = index;
+        mTimer = timer;
+        mIngestion = ingestion;
+        mTransport = transports.create(address, this);
+        for (int channel = 0; channel < SensorSample.CHANNEL_COUNT; channel++) {
+            mHistory[channel] = new SampleRingBuffer(HISTORY_CAPACITY);
+        }
+        BoardCodecs.install(mCodecs, mFrameDecoder);
+        mCodecs.putAll(host.getCodecs());
+        for (int profile = 0; profile < LinkProfile.COUNT; profile++) {
+            mProfileStats[profile] = new LinkProfileStats();
+            mProfileStats[profile].profile = profile;
+        }
+        mOperationQueue = new GattOperationQueue(timer, mMetrics);
+        mMotorWriter = new WriteCoalescer(new WriteCoalescer.Sink() {
+            @Override
+            public boolean write(int value) {
+                return enqueueMotorWrite(value);
+            }
+        });
+        mSubscriptions = new SubscriptionManager(GattHandles.HANDLE_COUNT,
+                new SubscriptionManager.Sink() {
+                    @Override
+                    public boolean writeCccd(int handle, boolean enabled) {
+                        return enqueueCccdWrite(handle, enabled);
+                    }
+                });
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    int getIndex() {
+        return mIndex;
+    }
+
+    int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /** ATT MTU negotiated on the current link. */
+    int getMtu() {
+        return mMtu;
+    }
+
+    SampleRingBuffer getHistory(int channel) {
+        return mHistory[channel];
+    }
+
+    boolean connect() {
+        mReconnect.setEnabled(true);
+        if (mReconnect.isReconnecting()) {
+            log(DEBUG, "Already reconnecting to " + mAddress);
+            return true;
+        }
+        // Previously connected device.  Try to reconnect.
+        mConnectStartNanos = System.nanoTime();
+        if (mTransport.isOpen()) {
+            log(DEBUG, "Trying to use an existing GATT client for connection.");
+            if (mTransport.reconnect()) {
+                mConnectionState = GattTransport.STATE_CONNECTING;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        // We want to directly connect to the device, not wait for it in the background.
+        if (!mTransport.open(false)) {
+            return false;
+        }
+        log(DEBUG, "Trying to create a new connection to " + mAddress);
+        mConnectionState = GattTransport.STATE_CONNECTING;
+        return true;
+    }
+
+    /** Disconnects at the user's request; the link isn't brought back until connect(). */
+    void disconnect() {
+        mReconnect.setEnabled(false);
+        cancelReconnect();
+        mTransport.disconnect();
+    }
+
+    void close() {
+        mReconnect.setEnabled(false);
+        cancelReconnect();
+        if (!mTransport.isOpen()) {
+            return;
+        }
+        resetLink();
+        mTransport.close();
+    }
+
+    private void cancelReconnect() {
+        mTimer.cancel(mReconnectTask);
+        mTimer.cancel(mConnectTimeoutTask);
+    }
+
+    // Schedules the next reconnect attempt after the link went down or an attempt failed.
+    private void scheduleReconnect() {
+        final long delay = mReconnect.onLinkLost(System.nanoTime());
+        if (delay < 0) {
+            return;
+        }
+        log(DEBUG, "Reconnecting to " + mAddress + " in " + delay + "ms");
+        mTimer.cancel(mReconnectTask);
+        mTimer.schedule(mReconnectTask, delay);
+    }
+
+    // Each attempt starts from a fresh client: reusing one through reconnect() would always be
+    // a background connect.
+    private final Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!mReconnect.isEnabled()) {
+                return;
+            }
+            final boolean background =
+                    mReconnect.nextAttempt() == ReconnectPolicy.ATTEMPT_BACKGROUND;
+            log(DEBUG, (background ? "Background" : "Direct") + " reconnect to " + mAddress);
+            mConnectStartNanos = System.nanoTime();
+            if (!mTransport.open(background)) {
+                scheduleReconnect();
+                return;
+            }
+            mConnectionState = GattTransport.STATE_CONNECTING;
+            if (!background) {
+                mTimer.schedule(mConnectTimeoutTask, DIRECT_CONNECT_TIMEOUT_MS);
+            }
+        }
+    };
+
+    private final Runnable mConnectTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionState == GattTransport.STATE_CONNECTED) {
+                return;
+            }
+            log(DEBUG, "Direct reconnect to " + mAddress + " timed out");
+            mTransport.close();
+            mConnectionState = GattTransport.STATE_DISCONNECTED;
+            scheduleReconnect();
+        }
+    };
+
+    // Drops everything tied to the link that just went away.
+    private void resetLink() {
+        saveAttributeCache();
+        mCacheEntry = null;
+        clearAttributes();
+        mLinkGeneration.incrementAndGet();
+        if (mIngestion == null) {
+            mCodecs.reset();
+        }
+        mMtu = DEFAULT_MTU;
+        mConnectedAt = 0;
+    }
+
+    // Drops everything tied to the current GATT database.
+    private void clearAttributes() {
+        mCacheValidated = false;
+        Arrays.fill(mLastNotificationNanos, 0);
+        mOperationQueue.clear();
+        mMotorWriter.reset();
+        mSubscriptions.reset();
+        mResolved = false;
+        stopPolling();
+    }
+
+    private void saveAttributeCache() {
+        if (mCacheEntry == null || !mCacheValidated) {
+            return;
+        }
+        mCacheEntry.enabledHandles = mSubscriptions.getEnabledMask();
+        mHost.putCachedAttributes(mAddress, mCacheEntry);
+    }
+
+    /**
+     * Checks the cache entry loaded at connect against the database just discovered, and
+     * replaces it if it doesn't match.
+     *
+     * @return whether the cached entry matched.
+     */
+    private boolean validateAttributeCache() {
+        final long fingerprint = mTransport.getDatabaseFingerprint();
+        final boolean hit = mCacheEntry != null && mCacheEntry.fingerprint == fingerprint;
+        if (hit) {
+            mCacheHits++;
+        } else {
+            mCacheMisses++;
+            if (mCacheEntry != null) {
+                log(INFO, "GATT database of " + mAddress + " changed; dropping cache");
+            }
+            mCacheEntry = new AttributeCacheEntry();
+            mCacheEntry.fingerprint = fingerprint;
+            mCacheEntry.mtu = DEFAULT_MTU;
+        }
+        mCacheValidated = true;
+        return hit;
+    }
+
+    // The peripheral's database changed under us: forget it and discover again.
+    private void onServiceChanged() {
+        log(INFO, "Service Changed from " + mAddress + ", rediscovering");
+        mHost.invalidateCachedAttributes(mAddress);
+        mCacheEntry = null;
+        clearAttributes();
+        mDiscoveryStartNanos = System.nanoTime();
+        mTransport.discoverServices();
+    }
+
+    ConnectionStats getStats() {
+        ConnectionStats stats = new ConnectionStats();
+        stats.connections = 1;
+        stats.operationsPerSecond = mOperationQueue.getOperationsPerSecond();
+        stats.completed = mOperationQueue.getCompletedCount();
+        stats.failed = mOperationQueue.getFailedCount();
+        stats.timedOut = mOperationQueue.getTimedOutCount();
+        stats.dropped = mOperationQueue.getDroppedCount();
+        stats.samples = mSampleCount;
+        stats.frames = mFrameDecoder.getFrameCount();
+        stats.lostFrames = mFrameDecoder.getLostFrameCount();
+        stats.meanLatencyNanos = mOperationQueue.getMeanLatencyNanos();
+        stats.maxLatencyNanos = mOperationQueue.getMaxLatencyNanos();
+        stats.motorCommands = mMotorWriter.getSubmittedCount();
+        stats.motorWrites = mMotorWriter.getIssuedCount();
+        stats.cccdWrites = mSubscriptions.getWriteCount();
+        stats.cccdSkipped = mSubscriptions.getSkippedCount();
+        stats.reconnects = mReconnect.getReconnectCount();
+        stats.reconnectAttempts = mReconnect.getAttemptCount();
+        stats.meanReconnectNanos = mReconnect.getMeanReconnectNanos();
+        stats.maxReconnectNanos = mReconnect.getMaxReconnectNanos();
+        stats.cacheHits = mCacheHits;
+        stats.cacheMisses = mCacheMisses;
+        stats.firstSampleNanos = mFirstSampleNanos;
+        return stats;
+    }
+
+    /** The connection's live counters and histograms. */
+    GattMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void onConnectionStateChange(int status, int newState) {
+        if (newState == GattTransport.STATE_CONNECTED) {
+            mConnectionState = GattTransport.STATE_CONNECTED;
+            log(INFO, "Connected to GATT server " + mAddress);
+            synchronized (mProfileStats) {
+                checkpointProfileLocked(true);
+            }
+            mTimer.cancel(mConnectTimeoutTask);
+            mConnectedAt = System.nanoTime();
+            mMetrics.count(GattMetrics.CONNECTS);
+            final long connectStart = mConnectStartNanos;
+            if (connectStart != 0) {
+                mMetrics.record(GattMetrics.CONNECTION_SETUP, mConnectedAt - connectStart);
+                mConnectStartNanos = 0;
+            }
+            // Loaded ahead of discovery; trusted once discovery confirms the layout.
+            mCacheEntry = mHost.getCachedAttributes(mAddress);
+            // Before discovery, so a fast profile speeds that up too.
+            requestConnectionPriority();
+            mHost.dispatchConnectionState(mAddress, newState);
+            // Attempts to discover services after successful connection.
+            mDiscoveryStartNanos = System.nanoTime();
+            log(INFO, "Attempting to start service discovery:"
+                    + mTransport.discoverServices());
+        } else if (newState == GattTransport.STATE_DISCONNECTED) {
+            mConnectionState = GattTransport.STATE_DISCONNECTED;
+            mMetrics.count(GattMetrics.DISCONNECTS);
+            mConnectStartNanos = 0;
+            mDiscoveryStartNanos = 0;
+            synchronized (mProfileStats) {
+                checkpointProfileLocked(false);
+            }
+            resetLink();
+            log(INFO, "Disconnected from GATT server " + mAddress + ", status " + status);
+            mHost.dispatchConnectionState(mAddress, newState);
+            // Also covers failed reconnect attempts, which end up here too.
+            mTimer.cancel(mConnectTimeoutTask);
+            scheduleReconnect();
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+        if (status == GattTransport.GATT_SUCCESS) {
+            final long now = System.nanoTime();
+            mReconnect.onLinkReady(now);
+            final long discoveryStart = mDiscoveryStartNanos;
+            if (discoveryStart != 0) {
+                mMetrics.record(GattMetrics.SERVICE_DISCOVERY, now - discoveryStart);
+                mDiscoveryStartNanos = 0;
+            }
+            mResolved = true;
+            int found = 0;
+            for (int handle = 0; handle < GattHandles.HANDLE_COUNT; handle++) {
+                if (hasHandle(handle)) {
+                    found++;
+                }
+            }
+            final boolean cached = validateAttributeCache();
+            log(INFO, "Resolved " + found + " of " + GattHandles.HANDLE_COUNT
+                    + " characteristics on " + mAddress + (cached ? " (cached layout)" : ""));
+            // A bonded device keeps its CCCDs across connections, so those needn't be
+            // written again; this client still has to register for their notifications.
+            if (cached && mTransport.isBonded()) {
+                mSubscriptions.assumeEnabled(registerKeptNotifications(
+                        mCacheEntry.enabledHandles));
+            }
+            if (canSubscribe(GattHandles.HANDLE_SERVICE_CHANGED)) {
+                mSubscriptions.setEnabled(GattHandles.HANDLE_SERVICE_CHANGED, true);
+            }
+            // Only frames need more than the default MTU; skip the exchange when there are
+            // none.  The MTU lasts only as long as the link, so it is asked for on every
+            // connection, whatever the cache says.
+            if (hasHandle(GattHandles.HANDLE_FRAME)) {
+                // Queued ahead of the subscriptions so frames arrive at full size.
+                requestMtu();
+            }
+            // Re-subscribe to whatever was enabled before the link went down.
+            mSubscriptions.applyAll();
+            if (mStreamingRequested) {
+                applySensorStreaming();
+            }
+            // Bring the motor back to the last commanded state after a reconnect.
+            mMotorWriter.flush();
+            mHost.dispatchServicesDiscovered(mAddress);
+        } else {
+            clearAttributes();
+            log(WARN, "onServicesDiscovered received: " + status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(int handle, UUID uuid, byte[] value, int status) {
+        if (status == GattTransport.GATT_SUCCESS) {
+            onCharacteristicValue(handle, uuid, value, System.nanoTime());
+        }
+        mOperationQueue.onOperationCompleted(GattOperationQueue.OP_READ, uuid, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(int handle, UUID uuid, byte[] value, int status) {
+        mHost.dispatchWriteAck(mAddress, uuid, value, status);
+        mOperationQueue.onOperationCompleted(GattOperationQueue.OP_WRITE, uuid, status);
+    }
+
+    @Override
+    public void onCharacteristicChanged(int handle, UUID uuid, byte[] value) {
+        final long now = System.nanoTime();
+        mMetrics.count(GattMetrics.NOTIFICATIONS);
+        mMetrics.count(GattMetrics.NOTIFICATION_BYTES, value == null ? 0 : value.length);
+        if (handle >= 0 && handle < mLastNotificationNanos.length) {
+            final long last = mLastNotificationNanos[handle];
+            if (last != 0) {
+                mMetrics.record(GattMetrics.NOTIFICATION_INTERVAL, now - last);
+            }
+            mLastNotificationNanos[handle] = now;
+        }
+        onCharacteristicValue(handle, uuid, value, now);
+    }
+
+    /**
+     * Switches link profile: applies its connection priority and, if streaming, re-plans
+     * which sensor characteristics are subscribed and how fast the rest are polled.
+     */
+    void setLinkProfile(int profile) {
+        synchronized (mProfileStats) {
+            if (profile == mLinkProfile) {
+                return;
+            }
+            checkpointProfileLocked(mProfileCounting);
+            mLinkProfile = profile;
+        }
+        log(INFO, "Link profile " + LinkProfile.nameOf(profile) + " on " + mAddress);
+        if (mConnectionState != GattTransport.STATE_CONNECTED) {
+            return;
+        }
+        requestConnectionPriority();
+        if (mStreamingRequested && mResolved) {
+            applySensorStreaming();
+        }
+    }
+
+    int getLinkProfile() {
+        synchronized (mProfileStats) {
+            return mLinkProfile;
+        }
+    }
+
+    /** Returns a copy of what {@code profile} has delivered on this connection so far. */
+    LinkProfileStats getLinkProfileStats(int profile) {
+        LinkProfileStats copy = new LinkProfileStats();
+        copy.profile = profile;
+        synchronized (mProfileStats) {
+            checkpointProfileLocked(mProfileCounting);
+            copy.add(mProfileStats[profile]);
+        }
+        return copy;
+    }
+
+    // Folds what happened since the last checkpoint into the current profile if the link was
+    // up, then starts a new interval that counts if {@code counting}.
+    private void checkpointProfileLocked(boolean counting) {
+        final long now = System.nanoTime();
+        final long samples = mSampleCount;
+        final long operations = mOperationQueue.getCompletedCount();
+        final long rttNanos = mOperationQueue.getTotalLatencyNanos();
+        if (mProfileCounting) {
+            LinkProfileStats stats = mProfileStats[mLinkProfile];
+            stats.activeNanos += now - mCheckpointNanos;
+            stats.samples += samples - mCheckpointSamples;
+            stats.operations += operations - mCheckpointOperations;
+            stats.totalRttNanos += rttNanos - mCheckpointRttNanos;
+        }
+        mProfileCounting = counting;
+        mCheckpointNanos = now;
+        mCheckpointSamples = samples;
+        mCheckpointOperations = operations;
+        mCheckpointRttNanos = rttNanos;
+    }
+
+    private void requestConnectionPriority() {
+        if (!mTransport.isLinkTuningSupported()) {
+            return;
+        }
+        if (!mTransport.requestConnectionPriority(getLinkProfile())) {
+            log(WARN, "requestConnectionPriority failed on " + mAddress);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        if (status == GattTransport.GATT_SUCCESS) {
+            mMtu = mtu;
+            // Only a completed exchange is remembered; a failed one says nothing about
+            // the device.
+            if (mCacheEntry != null) {
+                mCacheEntry.mtu = mtu;
+            }
+            saveAttributeCache();
+            log(INFO, "MTU " + mtu + " on " + mAddress);
+        } else {
+            log(WARN, "onMtuChanged received: " + status);
+        }
+        mOperationQueue.onOperationCompleted(GattOperationQueue.OP_REQUEST_MTU,
+                GattOperationQueue.NO_ATTRIBUTE, status);
+    }
+
+    @Override
+    public void onNotificationsSet(int handle, UUID uuid, boolean enabled, int status) {
+        if (status != GattTransport.GATT_SUCCESS) {
+            log(WARN, "onDescriptorWrite received: " + status);
+        }
+        mOperationQueue.onOperationCompleted(GattOperationQueue.OP_WRITE_DESCRIPTOR, uuid,
+                status);
+    }
+
+    // Handles a value read or notified by the peripheral: events right away, sensor values by
+    // decoding them here or queueing them for ingestion.
+    private void onCharacteristicValue(int handle, UUID uuid, byte[] value, long receivedNanos) {
+        //onDoubleTap
+        if (handle == GattHandles.HANDLE_DOUBLE_TAP) {
+            mHost.onDoubleTap(mAddress);
+            return;
+        }
+        if (handle == GattHandles.HANDLE_SERVICE_CHANGED) {
+            onServiceChanged();
+            return;
+        }
+        if (mIngestion != null) {
+            // Copied; a full pipeline counts the drop through onValueDropped().
+            mIngestion.offer(this, mLinkGeneration.get(), handle, uuid, value, receivedNanos);
+            return;
+        }
+        decode(uuid, value, receivedNanos);
+    }
+
+    @Override
+    public void onValue(int tag, int handle, UUID uuid, byte[] value, long receivedNanos) {
+        if (tag != mLinkGeneration.get()) {
+            // Arrived on a link that has gone away since.
+            return;
+        }
+        if (tag != mDecodedGeneration) {
+            mCodecs.reset();
+            mDecodedGeneration = tag;
+        }
+        mMetrics.record(GattMetrics.INGEST_DELAY, System.nanoTime() - receivedNanos);
+        decode(uuid, value, receivedNanos);
+    }
+
+    @Override
+    public void onValueDropped() {
+        mMetrics.count(GattMetrics.INGEST_DROPS);
+    }
+
+    @Override
+    public void onValueFailed(RuntimeException e, long failures) {
+        mHost.log(WARN, TAG, "Decoding a value from " + mAddress + " failed; " + failures
+                + " value(s) failed so far", e);
+    }
+
+    // Decodes roll, pitch, temperature, packed frames and whatever else has a codec, on the
+    // decoding thread.
+    private void decode(UUID uuid, byte[] value, long receivedNanos) {
+        final CharacteristicCodec codec = mCodecs.get(uuid);
+        if (codec != null && codec.decode(value, receivedNanos, mSample, mSampleSink) < 0) {
+            mMetrics.count(GattMetrics.MALFORMED_VALUES);
+            log(WARN, "Malformed value of " + uuid + " from " + mAddress);
+        }
+    }
+
+    /**
+     * Decodes values of {@code characteristic} with {@code codec} from now on, replacing the
+     * codec it had.
+     */
+    void registerCodec(UUID characteristic, CharacteristicCodec codec) {
+        mCodecs.put(characteristic, codec);
+    }
+
+    // Hands the sample in mSample to history and the service.
+    private void deliverSample() {
+        final long connectedAt = mConnectedAt;
+        if (connectedAt != 0) {
+            mFirstSampleNanos = System.nanoTime() - connectedAt;
+            mConnectedAt = 0;
+        }
+        mSampleCount++;
+        // Codecs registered for other boards may report channels we keep no history for.
+        if (mSample.channel >= 0 && mSample.channel < mHistory.length) {
+            mHistory[mSample.channel].add(mSample.timestampNanos, mSample.value);
+        }
+        mHost.dispatchSample(this, mSample);
+    }
+
+    private void requestMtu() {
+        if (!mTransport.isLinkTuningSupported()) {
+            return;
+        }
+        mOperationQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.OP_REQUEST_MTU, GattOperationQueue.NO_ATTRIBUTE,
+                GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+            @Override
+            boolean execute() {
+                return mTransport.requestMtu(REQUESTED_MTU);
+            }
+        });
+    }
+
+    void readCharacteristic(int handle) {
+        if (!mTransport.isOpen()) {
+            log(WARN, "Not connected to " + mAddress);
+            return;
+        }
+        if (!hasHandle(handle)) {
+            log(WARN, GattHandles.NAMES[handle] + " characteristic not found");
+            return;
+        }
+        if(!mOperationQueue.enqueue(new ReadOperation(handle))){
+            log(DEBUG, GattHandles.NAMES[handle] + " read already queued");
+        }
+    }
+
+    /**
+     * Sets the motor command.  Commands are coalesced: while a write is in flight newer ones
+     * replace each other, and a command equal to the last one sent is not sent again.
+     */
+    void writeMotor(int pwm, int speedRot) {
+        mMotorWriter.submit(((pwm & 0xff) << 8) | (speedRot & 0xff));
+    }
+
+    /**
+     * Sends motor commands as writes without response when the characteristic allows it.
+     * Flow control then comes from the stack: the next command is only issued once the
+     * previous one has been buffered and reported through onCharacteristicWrite.
+     */
+    void setMotorWriteWithoutResponse(boolean enabled) {
+        mMotorWriteWithoutResponse = enabled;
+    }
+
+    // Sink of mMotorWriter; the queue reports back through onFinished().
+    private boolean enqueueMotorWrite(int command) {
+        /*check the write characteristic was found at discovery*/
+        if (!hasHandle(GattHandles.HANDLE_MOTOR)) {
+            return false;
+        }
+
+        final CharacteristicCodec codec =
+                mCodecs.get(GattHandles.CHARACTERISTIC_UUIDS[GattHandles.HANDLE_MOTOR]);
+        if (codec == null || codec.getCommandLength() == 0) {
+            log(WARN, "No codec for motor commands on " + mAddress);
+            return false;
+        }
+        // Queued operations keep their value, so each write gets its own array.
+        byte[] values = new byte[codec.getCommandLength()];
+        codec.encode(command, values);
+
+        final boolean noResponse = mMotorWriteWithoutResponse && hasProperty(
+                GattHandles.HANDLE_MOTOR, GattTransport.PROPERTY_WRITE_NO_RESPONSE);
+        WriteOperation op = new WriteOperation(GattHandles.HANDLE_MOTOR, values, noResponse,
+                noResponse ? WRITE_NO_RESPONSE_TIMEOUT_MS
+                        : GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+            @Override
+            void onFinished(int status) {
+                mMotorWriter.onWriteFinished(status == GattTransport.GATT_SUCCESS);
+            }
+        };
+        if(!mOperationQueue.enqueue(op)){
+            log(WARN, "Failed to Write");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enables or disables double-tap notifications.  Repeating the current state is free, and
+     * the subscription is restored after a reconnect.
+     */
+    void setDoubleTapNotification(boolean enabled) {
+        if (mResolved && !canSubscribe(GattHandles.HANDLE_DOUBLE_TAP)) {
+            log(WARN, "Double Tap characteristic not found");
+            return;
+        }
+        mSubscriptions.setEnabled(GattHandles.HANDLE_DOUBLE_TAP, enabled);
+    }
+
+    /**
+     * Starts streaming roll, pitch and temperature; see
+     * {@link BluetoothLeService#startSensorStreaming()}.
+     */
+    void startSensorStreaming() {
+        mStreamingRequested = true;
+        if (!mTransport.isOpen() || !mResolved) {
+            return;
+        }
+        applySensorStreaming();
+    }
+
+    void stopSensorStreaming() {
+        mStreamingRequested = false;
+        stopPolling();
+        mSubscriptions.setEnabled(GattHandles.HANDLE_FRAME, false);
+        mSubscriptions.setEnabled(GattHandles.HANDLE_ROLL, false);
+        mSubscriptions.setEnabled(GattHandles.HANDLE_PITCH, false);
+        mSubscriptions.setEnabled(GattHandles.HANDLE_TEMP, false);
+    }
+
+    private void applySensorStreaming() {
+        stopPolling();
+        if (canSubscribe(GattHandles.HANDLE_FRAME)) {
+            // One frame carries every channel; the per-channel characteristics stay quiet.
+            mSubscriptions.setEnabled(GattHandles.HANDLE_FRAME, true);
+            return;
+        }
+        streamCharacteristic(GattHandles.HANDLE_ROLL, ROLL_POLL_PERIOD);
+        streamCharacteristic(GattHandles.HANDLE_PITCH, PITCH_POLL_PERIOD);
+        streamCharacteristic(GattHandles.HANDLE_TEMP, TEMP_POLL_PERIOD);
+    }
+
+    private void streamCharacteristic(int handle, long pollPeriod) {
+        if (!hasHandle(handle)) {
+            log(WARN, GattHandles.NAMES[handle] + " characteristic not found");
+            return;
+        }
+        final int profile = getLinkProfile();
+        if (canSubscribe(handle)) {
+            if (LinkProfile.prefersNotifications(profile)) {
+                mSubscriptions.setEnabled(handle, true);
+                return;
+            }
+            // Notifications come at the board's rate; slow polling is cheaper on the radio.
+            mSubscriptions.setEnabled(handle, false);
+        }
+        // No notify support on this peripheral, or the profile prefers polling.
+        pollPeriod = LinkProfile.scalePollPeriod(profile, pollPeriod);
+        log(INFO, "Polling " + GattHandles.NAMES[handle] + " every " + pollPeriod + "ms");
+        PollTask task = new PollTask(handle, pollPeriod);
+        synchronized (mPollTasks) {
+            mPollTasks.add(task);
+        }
+        mTimer.schedule(task, 0);
+    }
+
+    private void stopPolling() {
+        synchronized (mPollTasks) {
+            for (PollTask task : mPollTasks) {
+                mTimer.cancel(task);
+            }
+            mPollTasks.clear();
+        }
+    }
+
+    private void log(int priority, String message) {
+        mHost.log(priority, TAG, message, null);
+    }
+
+    // Whether the peripheral has the characteristic behind a handle.
+    private boolean hasHandle(int handle) {
+        return mTransport.getProperties(handle) != 0;
+    }
+
+    private boolean hasProperty(int handle, int property) {
+        return (mTransport.getProperties(handle) & property) != 0;
+    }
+
+    // Whether the characteristic behind a handle can notify or indicate.
+    private boolean canSubscribe(int handle) {
+        return mTransport.hasCccd(handle) && hasProperty(handle,
+                GattTransport.PROPERTY_NOTIFY | GattTransport.PROPERTY_INDICATE);
+    }
+
+    // Registers for notifications of handles whose CCCDs the bonded peripheral kept enabled;
+    // returns the handles that are now registered.
+    private int registerKeptNotifications(int handleMask) {
+        int registered = 0;
+        for (int handle = 0; handle < GattHandles.HANDLE_COUNT; handle++) {
+            if ((handleMask & (1 << handle)) != 0 && canSubscribe(handle)
+                    && mTransport.registerNotifications(handle, true)) {
+                registered |= 1 << handle;
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * Sink of mSubscriptions: enables or disables notifications (or indications) on a
+     * characteristic by writing its CCCD through the operation queue.
+     */
+    private boolean enqueueCccdWrite(final int handle, final boolean enabled) {
+        if (!canSubscribe(handle)) {
+            return false;
+        }
+        return mOperationQueue.enqueue(new NotificationOperation(handle, enabled) {
+            @Override
+            void onFinished(int status) {
+                mSubscriptions.onWriteFinished(handle, enabled,
+                        status == GattTransport.GATT_SUCCESS);
+            }
+        });
+    }
+
+    // Polls a sensor characteristic that can't notify.  A poll is dropped by the operation queue
+    // while the previous read of the same characteristic is still waiting.
+    private class PollTask implements Runnable {
+        private final int mHandle;
+        private final long mPeriod;
+
+        PollTask(int handle, long period) {
+            mHandle = handle;
+            mPeriod = period;
+        }
+
+        @Override
+        public void run() {
+            mOperationQueue.enqueue(new ReadOperation(mHandle));
+            mTimer.schedule(this, mPeriod);
+        }
+    }
+
+    // Queued GATT requests, issued through the transport once it is their turn.  One that
+    // outlives its link simply fails, since the transport's handles are gone.
+    private class ReadOperation extends GattOperationQueue.Operation {
+        private final int mHandle;
+
+        ReadOperation(int handle) {
+            super(GattOperationQueue.OP_READ, GattHandles.CHARACTERISTIC_UUIDS[handle],
+                    GattOperationQueue.DEFAULT_TIMEOUT_MS);
+            mHandle = handle;
+        }
+
+        @Override
+        boolean execute() {
+            return mTransport.read(mHandle);
+        }
+    }
+
+    private class WriteOperation extends GattOperationQueue.Operation {
+        private final int mHandle;
+        private final byte[] mValue;
+        private final boolean mWithoutResponse;
+
+        WriteOperation(int handle, byte[] value, boolean withoutResponse, long timeoutMs) {
+            super(GattOperationQueue.OP_WRITE, GattHandles.CHARACTERISTIC_UUIDS[handle],
+                    timeoutMs);
+            mHandle = handle;
+            mValue = value;
+            mWithoutResponse = withoutResponse;
+        }
+
+        @Override
+        boolean execute() {
+            return mTransport.write(mHandle, mValue, mWithoutResponse);
+        }
+    }
+
+    private class NotificationOperation extends GattOperationQueue.Operation {
+        private final int mHandle;
+        private final boolean mEnabled;
+
+        NotificationOperation(int handle, boolean enabled) {
+            super(GattOperationQueue.OP_WRITE_DESCRIPTOR, GattHandles.CHARACTERISTIC_UUIDS[handle],
+                    GattOperationQueue.DEFAULT_TIMEOUT_MS);
+            mHandle = handle;
+            mEnabled = enabled;
+        }
+
+        @Override
+        boolean execute() {
+            return mTransport.setNotifications(mHandle, mEnabled);
+        }
+    }
+}
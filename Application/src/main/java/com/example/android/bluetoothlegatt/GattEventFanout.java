@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Forwards events to a set of {@link GattEventListener}s, each only the kinds of event it was
+ * added for.  The sets are copied on change and read as plain arrays, so delivering an event
+ * doesn't allocate.
+ */
+class GattEventFanout implements GattEventListener {
+    private static final GattEventListener[] EMPTY = new GattEventListener[0];
+
+    // Connection state changes and service discovery.
+    private volatile GattEventListener[] mConnectionListeners = EMPTY;
+    private volatile GattEventListener[] mSampleListeners = EMPTY;
+    private volatile GattEventListener[] mWriteAckListeners = EMPTY;
+
+    /**
+     * @param events the {@code GattEventListener.EVENT_*} flags of the events to forward.
+     */
+    synchronized void add(GattEventListener listener, int events) {
+        if ((events & EVENT_CONNECTION) != 0) {
+            mConnectionListeners = added(mConnectionListeners, listener);
+        }
+        if ((events & EVENT_SAMPLES) != 0) {
+            mSampleListeners = added(mSampleListeners, listener);
+        }
+        if ((events & EVENT_WRITE_ACKS) != 0) {
+            mWriteAckListeners = added(mWriteAckListeners, listener);
+        }
+    }
+
+    synchronized void remove(GattEventListener listener) {
+        mConnectionListeners = removed(mConnectionListeners, listener);
+        mSampleListeners = removed(mSampleListeners, listener);
+        mWriteAckListeners = removed(mWriteAckListeners, listener);
+    }
+
+    private static GattEventListener[] added(GattEventListener[] old,
+                                             GattEventListener listener) {
+        final GattEventListener[] updated = new GattEventListener[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, old.length);
+        updated[old.length] = listener;
+        return updated;
+    }
+
+    private static GattEventListener[] removed(GattEventListener[] old,
+                                               GattEventListener listener) {
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == listener) {
+                final GattEventListener[] updated = new GattEventListener[old.length - 1];
+                System.arraycopy(old, 0, updated, 0, i);
+                System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                return updated;
+            }
+        }
+        return old;
+    }
+
+    @Override
+    public void onConnectionStateChanged(String address, int state) {
+        for (GattEventListener listener : mConnectionListeners) {
+            listener.onConnectionStateChanged(address, state);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        for (GattEventListener listener : mConnectionListeners) {
+            listener.onServicesDiscovered(address);
+        }
+    }
+
+    @Override
+    public void onSample(String address, SensorSample sample) {
+        for (GattEventListener listener : mSampleListeners) {
+            listener.onSample(address, sample);
+        }
+    }
+
+    @Override
+    public void onWriteAck(String address, UUID characteristic, int status) {
+        for (GattEventListener listener : mWriteAckListeners) {
+            listener.onWriteAck(address, characteristic, status);
+        }
+    }
+}
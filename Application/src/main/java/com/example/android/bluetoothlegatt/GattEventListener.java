@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * In-process callbacks from {@link BluetoothLeService}.  Register through
+ * {@link BluetoothLeService#addListener}; events are delivered either directly, on the GATT
+ * callback thread and samples on the service's ingestion thread, or on the thread of a
+ * supplied {@code Handler}.
+ */
+public interface GattEventListener {
+    /** {@link #onConnectionStateChanged} and {@link #onServicesDiscovered}. */
+    int EVENT_CONNECTION = 1;
+    /** {@link #onSample}. */
+    int EVENT_SAMPLES = 1 << 1;
+    /** {@link #onWriteAck}. */
+    int EVENT_WRITE_ACKS = 1 << 2;
+    int EVENT_ALL = EVENT_CONNECTION | EVENT_SAMPLES | EVENT_WRITE_ACKS;
+
+    /**
+     * @param state one of the {@code BluetoothProfile.STATE_*} constants.
+     */
+    void onConnectionStateChanged(String address, int state);
+
+    void onServicesDiscovered(String address);
+
+    /**
+     * A decoded sensor value.  {@code sample} is reused for the next value, so copy out what
+     * needs to outlive this call.
+     */
+    void onSample(String address, SensorSample sample);
+
+    /**
+     * @param status the GATT status of the write, {@code BluetoothGatt.GATT_SUCCESS} if the
+     *               peripheral acknowledged it.
+     */
+    void onWriteAck(String address, UUID characteristic, int status);
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+/**
+ * The {@link GattHandles} resolved against a discovered GATT database, for
+ * {@link AndroidGattTransport}.  Lookups index into this table by handle instead of looking
+ * services and characteristics up by UUID each time.  The table is cleared on disconnect and
+ * refilled on every discovery, so references from a previous GATT database are never reused.
+ */
+class GattHandleTable {
+    private static final int HANDLE_COUNT = GattHandles.HANDLE_COUNT;
+
+    private static final UUID UUID_CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private final BluetoothGattService[] mServices = new BluetoothGattService[HANDLE_COUNT];
+    private final BluetoothGattCharacteristic[] mCharacteristics =
+            new BluetoothGattCharacteristic[HANDLE_COUNT];
+    private final BluetoothGattDescriptor[] mCccds = new BluetoothGattDescriptor[HANDLE_COUNT];
+    private final int[] mProperties = new int[HANDLE_COUNT];
+    private volatile boolean mResolved;
+
+    /**
+     * Resolves every handle against a freshly discovered GATT database.
+     *
+     * @return the number of handles found.
+     */
+    synchronized int populate(BluetoothGatt gatt) {
+        clear();
+        int found = 0;
+        for (int handle = 0; handle < HANDLE_COUNT; handle++) {
+            BluetoothGattService service = gatt.getService(GattHandles.SERVICE_UUIDS[handle]);
+            if (service == null) {
+                continue;
+            }
+            BluetoothGattCharacteristic characteristic =
+                    service.getCharacteristic(GattHandles.CHARACTERISTIC_UUIDS[handle]);
+            if (characteristic == null) {
+                continue;
+            }
+            mServices[handle] = service;
+            mCharacteristics[handle] = characteristic;
+            mCccds[handle] = characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG);
+            mProperties[handle] = characteristic.getProperties();
+            found++;
+        }
+        mResolved = true;
+        return found;
+    }
+
+    synchronized void clear() {
+        mResolved = false;
+        for (int handle = 0; handle < HANDLE_COUNT; handle++) {
+            mServices[handle] = null;
+            mCharacteristics[handle] = null;
+            mCccds[handle] = null;
+            mProperties[handle] = 0;
+        }
+    }
+
+    /** Whether the table reflects a discovered GATT database. */
+    boolean isResolved() {
+        return mResolved;
+    }
+
+    /** Returns the characteristic for a handle, or null if the peripheral doesn't have it. */
+    BluetoothGattCharacteristic get(int handle) {
+        return mCharacteristics[handle];
+    }
+
+    BluetoothGattService getService(int handle) {
+        return mServices[handle];
+    }
+
+    /** Returns the Client Characteristic Configuration descriptor, or null if there is none. */
+    BluetoothGattDescriptor getCccd(int handle) {
+        return mCccds[handle];
+    }
+
+    int getProperties(int handle) {
+        return mProperties[handle];
+    }
+
+    boolean hasProperty(int handle, int property) {
+        return (mProperties[handle] & property) != 0;
+    }
+
+    /**
+     * Maps a characteristic from a GATT callback back to its handle.
+     *
+     * @return the handle, or {@link GattHandles#HANDLE_NONE} if the characteristic isn't in
+     *     the table.
+     */
+    int handleOf(BluetoothGattCharacteristic characteristic) {
+        for (int handle = 0; handle < HANDLE_COUNT; handle++) {
+            if (mCharacteristics[handle] == characteristic) {
+                return handle;
+            }
+        }
+        return GattHandles.HANDLE_NONE;
+    }
+}
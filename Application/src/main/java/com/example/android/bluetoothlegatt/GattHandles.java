@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * The characteristics the app talks to, each identified by a small integer handle.  Hot-path
+ * code indexes by handle instead of comparing UUIDs; a {@link GattTransport} maps handles to
+ * the attributes of the peripheral it is connected to.
+ */
+final class GattHandles {
+    // The sensor handles double as SensorSample channels.
+    static final int HANDLE_ROLL = SensorSample.CHANNEL_ROLL;
+    static final int HANDLE_PITCH = SensorSample.CHANNEL_PITCH;
+    static final int HANDLE_TEMP = SensorSample.CHANNEL_TEMP;
+    static final int HANDLE_MOTOR = 3;
+    static final int HANDLE_DOUBLE_TAP = 4;
+    static final int HANDLE_FRAME = 5;
+    static final int HANDLE_SERVICE_CHANGED = 6;
+    static final int HANDLE_COUNT = 7;
+
+    /** Handle reported for characteristics outside the table. */
+    static final int HANDLE_NONE = -1;
+
+    // Where each handle lives in the GATT database, indexed by handle.
+    static final UUID[] SERVICE_UUIDS = new UUID[HANDLE_COUNT];
+    static final UUID[] CHARACTERISTIC_UUIDS = new UUID[HANDLE_COUNT];
+    static final String[] NAMES = new String[HANDLE_COUNT];
+
+    static {
+        plan(HANDLE_ROLL, SampleGattAttributes.SENSOR_SERVICE,
+                SampleGattAttributes.ROLL_MEASUREMENT, "Roll");
+        plan(HANDLE_PITCH, SampleGattAttributes.SENSOR_SERVICE,
+                SampleGattAttributes.PITCH_MEASUREMENT, "Pitch");
+        plan(HANDLE_TEMP, SampleGattAttributes.SENSOR_SERVICE,
+                SampleGattAttributes.TEMP_MEASUREMENT, "Temperature");
+        plan(HANDLE_MOTOR, SampleGattAttributes.SAMPLE_SERVICE,
+                SampleGattAttributes.SAMPLE_CHARA, "Motor");
+        plan(HANDLE_DOUBLE_TAP, SampleGattAttributes.DT_SERVICE,
+                SampleGattAttributes.DOUBLE_TAP_CHARA, "Double Tap");
+        plan(HANDLE_FRAME, SampleGattAttributes.SENSOR_SERVICE,
+                SampleGattAttributes.SENSOR_FRAME, "Sensor Frame");
+        plan(HANDLE_SERVICE_CHANGED, SampleGattAttributes.GENERIC_ATTRIBUTE_SERVICE,
+                SampleGattAttributes.SERVICE_CHANGED, "Service Changed");
+    }
+
+    private GattHandles() {
+    }
+
+    private static void plan(int handle, String service, String characteristic, String name) {
+        SERVICE_UUIDS[handle] = UUID.fromString(service);
+        CHARACTERISTIC_UUIDS[handle] = UUID.fromString(characteristic);
+        NAMES[handle] = name;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of one connection, or their sum over several.  Obtained
+ * from {@link BluetoothLeService#getMetrics(String)} and
+ * {@link BluetoothLeService#getAggregateMetrics()}, and printed by {@code dumpsys}.  Recording
+ * is lock-free and doesn't allocate.
+ */
+public final class GattMetrics {
+    /** From a read request to its response. */
+    public static final int READ_LATENCY = 0;
+    /** From a write request to its acknowledgement, or to being buffered without response. */
+    public static final int WRITE_ACK_LATENCY = 1;
+    /** Between consecutive notifications of the same characteristic. */
+    public static final int NOTIFICATION_INTERVAL = 2;
+    /** From queueing a GATT operation to issuing it. */
+    public static final int QUEUE_WAIT = 3;
+    /** From a connect or reconnect attempt to the link coming up. */
+    public static final int CONNECTION_SETUP = 4;
+    /** From starting service discovery to its result. */
+    public static final int SERVICE_DISCOVERY = 5;
+    /** From a value arriving to the ingestion thread picking it up. */
+    public static final int INGEST_DELAY = 6;
+    public static final int HISTOGRAM_COUNT = 7;
+
+    public static final int NOTIFICATIONS = 0;
+    public static final int NOTIFICATION_BYTES = 1;
+    /** Reads and writes that completed, successfully or not. */
+    public static final int READS = 2;
+    public static final int WRITES = 3;
+    /** Operations abandoned by the queue after their timeout. */
+    public static final int TIMEOUTS = 4;
+    public static final int CONNECTS = 5;
+    public static final int DISCONNECTS = 6;
+    /** Values their codec couldn't decode. */
+    public static final int MALFORMED_VALUES = 7;
+    /** Values the ingestion pipeline dropped because its queue was full. */
+    public static final int INGEST_DROPS = 8;
+    public static final int COUNTER_COUNT = 9;
+
+    private static final String[] HISTOGRAM_NAMES = {"read", "write ack",
+            "notification interval", "queue wait", "connection setup", "service discovery",
+            "ingest delay"};
+    private static final String[] COUNTER_NAMES = {"notifications", "notification bytes",
+            "reads", "writes", "timeouts", "connects", "disconnects", "malformed values",
+            "ingest drops"};
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[HISTOGRAM_COUNT];
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+
+    public GattMetrics() {
+        for (int histogram = 0; histogram < HISTOGRAM_COUNT; histogram++) {
+            mHistograms[histogram] = new LatencyHistogram();
+        }
+    }
+
+    public static String nameOfHistogram(int histogram) {
+        return HISTOGRAM_NAMES[histogram];
+    }
+
+    public static String nameOfCounter(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    public LatencyHistogram getHistogram(int histogram) {
+        return mHistograms[histogram];
+    }
+
+    public long getCounter(int counter) {
+        return mCounters.get(counter);
+    }
+
+    void record(int histogram, long nanos) {
+        mHistograms[histogram].record(nanos);
+    }
+
+    void count(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    void count(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    /** Adds another connection's figures to these. */
+    public void add(GattMetrics other) {
+        for (int histogram = 0; histogram < HISTOGRAM_COUNT; histogram++) {
+            mHistograms[histogram].add(other.mHistograms[histogram]);
+        }
+        for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+            mCounters.addAndGet(counter, other.mCounters.get(counter));
+        }
+    }
+
+    /** Writes every counter, then every histogram that recorded something. */
+    public void dump(PrintWriter writer, String prefix) {
+        writer.print(prefix);
+        for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+            writer.print(counter == 0 ? "" : ", ");
+            writer.print(COUNTER_NAMES[counter]);
+            writer.print(' ');
+            writer.print(mCounters.get(counter));
+        }
+        writer.println();
+        for (int histogram = 0; histogram < HISTOGRAM_COUNT; histogram++) {
+            if (mHistograms[histogram].getCount() > 0) {
+                writer.print(prefix);
+                writer.print(HISTOGRAM_NAMES[histogram]);
+                writer.print(": ");
+                writer.println(mHistograms[histogram]);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Serializes GATT operations for one connection.  {@code BluetoothGatt} accepts a single
+ * outstanding request, so every read, write and descriptor write is queued here and the next
+ * one is started from the completion callback of the previous one.  An operation that never
+ * completes is abandoned after its timeout so the queue cannot stall.
+ */
+class GattOperationQueue {
+    static final int OP_READ = 0;
+    static final int OP_WRITE = 1;
+    static final int OP_WRITE_DESCRIPTOR = 2;
+    static final int OP_REQUEST_MTU = 3;
+
+    /** UUID of operations that don't target an attribute, such as an MTU request. */
+    static final UUID NO_ATTRIBUTE = new UUID(0L, 0L);
+
+    static final long DEFAULT_TIMEOUT_MS = 1000;
+
+    /** Status passed to {@link Operation#onFinished} when the request never completed. */
+    static final int STATUS_NOT_COMPLETED = -1;
+
+    // Upper bound on queued operations; anything past this is dropped instead of piling up
+    // behind a slow link.
+    private static final int MAX_PENDING = 32;
+    private static final long RATE_WINDOW_NANOS = 1000000000L;
+
+    /**
+     * Schedules the timeout of the operation in flight.  The service backs this with a
+     * {@code Handler}.
+     */
+    interface Timer {
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    /**
+     * A single GATT request.  {@link #execute()} issues it and returns whether the stack
+     * accepted it; completion is reported through {@link #onOperationCompleted}.  execute()
+     * runs with the queue locked, so it must do nothing but issue the request.
+     */
+    abstract static class Operation {
+        final int mType;
+        final UUID mUuid;
+        final long mTimeoutMs;
+        long mEnqueuedNanos;
+
+        Operation(int type, UUID uuid, long timeoutMs) {
+            mType = type;
+            mUuid = uuid;
+            mTimeoutMs = timeoutMs;
+        }
+
+        abstract boolean execute();
+
+        /**
+         * Called once the operation has left the queue: with the GATT status when it
+         * completed, or {@link #STATUS_NOT_COMPLETED} when the stack refused it or it timed
+         * out.  Not called for operations dropped by {@link #clear()}.  Runs without the
+         * queue locked, before the next operation is issued, so it may take other locks and
+         * enqueue follow-up operations.
+         */
+        void onFinished(int status) {
+        }
+    }
+
+    private final Timer mTimer;
+    // Where queue waits, read and write latencies and timeouts are recorded; may be null.
+    private final GattMetrics mMetrics;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private Operation mCurrent;
+    private long mCurrentStart;
+
+    private long mCompleted;
+    private long mFailed;
+    private long mTimedOut;
+    private long mDropped;
+
+    private long mWindowStart = System.nanoTime();
+    private int mWindowCount;
+    private float mOpsPerSecond;
+
+    // Issue-to-completion time of completed operations.
+    private long mLatencyTotalNanos;
+    private long mLatencyMaxNanos;
+
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            final Operation op;
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent == null) {
+                    return;
+                }
+                mTimedOut++;
+                if (mMetrics != null) {
+                    mMetrics.count(GattMetrics.TIMEOUTS);
+                }
+                op = mCurrent;
+                mCurrent = null;
+            }
+            finish(op, STATUS_NOT_COMPLETED);
+        }
+    };
+
+    GattOperationQueue(Timer timer) {
+        this(timer, null);
+    }
+
+    GattOperationQueue(Timer timer, GattMetrics metrics) {
+        mTimer = timer;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Queues an operation, starting it right away when the link is idle.  A read of a
+     * characteristic that already has a read waiting is dropped, since the pending one will
+     * return the same value.
+     *
+     * @return false if the operation was dropped.
+     */
+    boolean enqueue(Operation op) {
+        final Operation refused;
+        synchronized (this) {
+            if (op.mType == OP_READ && isPendingLocked(OP_READ, op.mUuid)) {
+                mDropped++;
+                return false;
+            }
+            if (mPending.size() >= MAX_PENDING) {
+                mDropped++;
+                return false;
+            }
+            op.mEnqueuedNanos = System.nanoTime();
+            mPending.add(op);
+            refused = startNextLocked();
+        }
+        if (refused != null) {
+            finish(refused, STATUS_NOT_COMPLETED);
+        }
+        return true;
+    }
+
+    /**
+     * Called from the GATT callback of a finished request.  Completions that do not match the
+     * operation in flight (e.g. a late answer to one that already timed out) are ignored.
+     */
+    void onOperationCompleted(int type, UUID uuid, int status) {
+        final Operation op;
+        synchronized (this) {
+            op = takeCompletedLocked(type, uuid);
+        }
+        if (op != null) {
+            finish(op, status);
+        }
+    }
+
+    // Takes the operation in flight off the queue if the completion is its own.
+    private Operation takeCompletedLocked(int type, UUID uuid) {
+        if (mCurrent == null || mCurrent.mType != type || !mCurrent.mUuid.equals(uuid)) {
+            return null;
+        }
+        mTimer.cancel(mTimeoutTask);
+        mCompleted++;
+        final long latency = System.nanoTime() - mCurrentStart;
+        mLatencyTotalNanos += latency;
+        if (latency > mLatencyMaxNanos) {
+            mLatencyMaxNanos = latency;
+        }
+        if (mMetrics != null) {
+            if (type == OP_READ) {
+                mMetrics.record(GattMetrics.READ_LATENCY, latency);
+                mMetrics.count(GattMetrics.READS);
+            } else if (type == OP_WRITE) {
+                mMetrics.record(GattMetrics.WRITE_ACK_LATENCY, latency);
+                mMetrics.count(GattMetrics.WRITES);
+            }
+        }
+        countCompletionLocked();
+        final Operation op = mCurrent;
+        mCurrent = null;
+        return op;
+    }
+
+    /** Drops every queued operation, e.g. once the link is gone. */
+    synchronized void clear() {
+        mTimer.cancel(mTimeoutTask);
+        mPending.clear();
+        mCurrent = null;
+    }
+
+    synchronized boolean isIdle() {
+        return mCurrent == null && mPending.isEmpty();
+    }
+
+    /** Completed operations per second, measured over the last full one-second window. */
+    synchronized float getOperationsPerSecond() {
+        if (System.nanoTime() - mWindowStart > 2 * RATE_WINDOW_NANOS) {
+            // Nothing completed for a while; don't keep reporting a stale rate.
+            return 0f;
+        }
+        return mOpsPerSecond;
+    }
+
+    synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    synchronized long getTimedOutCount() {
+        return mTimedOut;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /** Mean time from issuing an operation to its completion callback. */
+    synchronized long getMeanLatencyNanos() {
+        return mCompleted == 0 ? 0 : mLatencyTotalNanos / mCompleted;
+    }
+
+    /** Sum of the issue-to-completion times of all completed operations. */
+    synchronized long getTotalLatencyNanos() {
+        return mLatencyTotalNanos;
+    }
+
+    synchronized long getMaxLatencyNanos() {
+        return mLatencyMaxNanos;
+    }
+
+    private boolean isPendingLocked(int type, UUID uuid) {
+        Iterator<Operation> it = mPending.iterator();
+        while (it.hasNext()) {
+            Operation op = it.next();
+            if (op.mType == type && op.mUuid.equals(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reports an operation that left the queue, then issues the next one.  Called without the
+    // lock, so onFinished() can't deadlock against a caller holding its own lock and enqueueing.
+    private void finish(Operation op, int status) {
+        Operation finished = op;
+        while (finished != null) {
+            finished.onFinished(status);
+            // Anything after the first is an operation the stack refused outright.
+            status = STATUS_NOT_COMPLETED;
+            synchronized (this) {
+                finished = startNextLocked();
+            }
+        }
+    }
+
+    // Issues the next operation if the link is idle.  Returns one the stack refused outright,
+    // whose onFinished() the caller must run after releasing the lock, or null.
+    private Operation startNextLocked() {
+        final Operation op;
+        if (mCurrent != null || (op = mPending.poll()) == null) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        if (!op.execute()) {
+            // No callback will come for it.
+            mFailed++;
+            return op;
+        }
+        mCurrent = op;
+        mCurrentStart = start;
+        if (mMetrics != null) {
+            mMetrics.record(GattMetrics.QUEUE_WAIT, start - op.mEnqueuedNanos);
+        }
+        mTimer.schedule(mTimeoutTask, op.mTimeoutMs);
+        return null;
+    }
+
+    private void countCompletionLocked() {
+        mWindowCount++;
+        long now = System.nanoTime();
+        long elapsed = now - mWindowStart;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            mOpsPerSecond = mWindowCount * 1e9f / elapsed;
+            mWindowCount = 0;
+            mWindowStart = now;
+        }
+    }
+}
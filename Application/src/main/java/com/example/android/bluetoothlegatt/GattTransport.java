@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * The GATT client operations a {@link GattConnection} needs, addressed by
+ * {@link GattHandles handle}.  {@link AndroidGattTransport} runs them against a real
+ * peripheral through {@code BluetoothGatt}; {@link SimulatedPeripheral} emulates the board in
+ * process, so the data path can be exercised without one.
+ *
+ * <p>Requests return whether they were started; each started request completes through its
+ * {@link Callback} method, possibly on another thread.  Callbacks of one transport are never
+ * delivered concurrently.
+ */
+interface GattTransport {
+    // Same values as BluetoothGatt, BluetoothProfile and BluetoothGattCharacteristic, so
+    // Android's pass through unchanged.
+    int GATT_SUCCESS = 0;
+    int GATT_FAILURE = 0x101;
+
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+    int PROPERTY_INDICATE = 0x20;
+
+    /**
+     * GATT events.  Characteristic callbacks carry the handle, or
+     * {@link GattHandles#HANDLE_NONE} for characteristics outside the table, and the UUID.
+     */
+    interface Callback {
+        void onConnectionStateChange(int status, int newState);
+
+        void onServicesDiscovered(int status);
+
+        void onCharacteristicRead(int handle, UUID uuid, byte[] value, int status);
+
+        void onCharacteristicWrite(int handle, UUID uuid, byte[] value, int status);
+
+        void onCharacteristicChanged(int handle, UUID uuid, byte[] value);
+
+        /** The CCCD write started by {@link #setNotifications} finished. */
+        void onNotificationsSet(int handle, UUID uuid, boolean enabled, int status);
+
+        void onMtuChanged(int mtu, int status);
+    }
+
+    /** Creates the transport for a device address. */
+    interface Factory {
+        GattTransport create(String address, Callback callback);
+    }
+
+    String getAddress();
+
+    /**
+     * Starts a fresh connection attempt, dropping any earlier client first.  A background
+     * attempt waits for the device to show up instead of timing out.
+     */
+    boolean open(boolean background);
+
+    /** Whether a client is open, connected or not. */
+    boolean isOpen();
+
+    /** Reconnects the open client; returns false if there is none or it refuses. */
+    boolean reconnect();
+
+    void disconnect();
+
+    /** Releases the client.  No callbacks are delivered afterwards. */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * Properties of the characteristic behind a handle, as {@code PROPERTY_*} bits, or 0 if
+     * the peripheral doesn't have it or services haven't been discovered.
+     */
+    int getProperties(int handle);
+
+    /** Whether the characteristic behind a handle has a Client Characteristic Configuration. */
+    boolean hasCccd(int handle);
+
+    /** Fingerprint of the discovered GATT database; equal layouts give equal values. */
+    long getDatabaseFingerprint();
+
+    /** Whether the peripheral is bonded, so it keeps CCCD state across connections. */
+    boolean isBonded();
+
+    boolean read(int handle);
+
+    boolean write(int handle, byte[] value, boolean withoutResponse);
+
+    /**
+     * Enables or disables notifications, or indications if that's all it supports: registers
+     * this client for them and writes the CCCD.
+     */
+    boolean setNotifications(int handle, boolean enabled);
+
+    /**
+     * Only registers this client for notifications of a handle, without writing its CCCD, for
+     * a bonded peripheral that kept the CCCD from an earlier connection.  Registrations belong
+     * to the client, so a new one needs this even when the CCCD is set.  Takes effect at once;
+     * no callback follows.
+     */
+    boolean registerNotifications(int handle, boolean enabled);
+
+    /**
+     * Whether {@link #requestMtu} and {@link #requestConnectionPriority} are available at all;
+     * on Android they need API 21.
+     */
+    boolean isLinkTuningSupported();
+
+    boolean requestMtu(int mtu);
+
+    /** Applies the connection parameters suited to a {@link LinkProfile}. */
+    boolean requestConnectionPriority(int linkProfile);
+}
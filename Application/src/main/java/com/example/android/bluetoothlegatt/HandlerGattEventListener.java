@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.Message;
+
+import java.util.UUID;
+
+/**
+ * Re-delivers events to another listener on a {@code Handler}'s thread.  Samples are copied
+ * into a fixed ring of preallocated {@link SensorSample}s and handed over with pooled
+ * {@code Message}s, so the hot path doesn't allocate; if the target thread falls a full ring
+ * behind, new samples are dropped and counted.  Connection events and write acks are rare and
+ * are simply posted.
+ */
+class HandlerGattEventListener implements GattEventListener, Handler.Callback {
+    private static final int RING_SIZE = 64;
+    private static final int RING_MASK = RING_SIZE - 1;
+    private static final int MSG_SAMPLE = 1;
+
+    private final GattEventListener mTarget;
+    private final Handler mHandler;
+
+    private final SensorSample[] mSamples = new SensorSample[RING_SIZE];
+    private final String[] mAddresses = new String[RING_SIZE];
+    private long mWritten;
+    private volatile long mRead;
+    private long mDropped;
+    private volatile boolean mDetached;
+
+    HandlerGattEventListener(GattEventListener target, Handler handler) {
+        mTarget = target;
+        mHandler = new Handler(handler.getLooper(), this);
+        for (int i = 0; i < RING_SIZE; i++) {
+            mSamples[i] = new SensorSample();
+        }
+    }
+
+    GattEventListener getTarget() {
+        return mTarget;
+    }
+
+    /** Stops delivery; events still queued on the target thread are discarded. */
+    void detach() {
+        mDetached = true;
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    @Override
+    public void onConnectionStateChanged(final String address, final int state) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDetached) {
+                    mTarget.onConnectionStateChanged(address, state);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(final String address) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDetached) {
+                    mTarget.onServicesDiscovered(address);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSample(String address, SensorSample sample) {
+        final int slot;
+        synchronized (this) {
+            if (mWritten - mRead >= RING_SIZE) {
+                mDropped++;
+                return;
+            }
+            slot = (int) (mWritten & RING_MASK);
+            mSamples[slot].set(sample.channel, sample.value, sample.timestampNanos);
+            mAddresses[slot] = address;
+            mWritten++;
+        }
+        mHandler.sendMessage(Message.obtain(mHandler, MSG_SAMPLE, slot, 0));
+    }
+
+    @Override
+    public void onWriteAck(final String address, final UUID characteristic, final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDetached) {
+                    mTarget.onWriteAck(address, characteristic, status);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what != MSG_SAMPLE) {
+            return false;
+        }
+        if (!mDetached) {
+            mTarget.onSample(mAddresses[msg.arg1], mSamples[msg.arg1]);
+        }
+        // Only this thread advances the read position.
+        mRead = mRead + 1;
+        return true;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves characteristic values off the transport's callback thread.  The callback copies each
+ * value into a preallocated slot of a bounded lock-free ring and returns; a single worker
+ * thread takes them out in order and hands them to their {@link Consumer}, which decodes and
+ * fans them out.  A slow listener then delays the worker, not the Bluetooth stack.
+ *
+ * <p>When the ring is full, the policy decides what gives:
+ * <ul>
+ * <li>{@link #POLICY_DROP_NEWEST}: the incoming value is dropped.  The default.</li>
+ * <li>{@link #POLICY_DROP_OLDEST}: the oldest queued value is dropped to make room, so what
+ * gets through is as fresh as possible.</li>
+ * <li>{@link #POLICY_BLOCK}: the callback thread waits for room, holding up the stack, for at
+ * most {@link #BLOCK_TIMEOUT_NANOS}; then the value is dropped after all.</li>
+ * </ul>
+ * Every dropped value is counted here and reported to its consumer.
+ */
+final class IngestionPipeline {
+    static final int POLICY_DROP_NEWEST = 0;
+    static final int POLICY_DROP_OLDEST = 1;
+    static final int POLICY_BLOCK = 2;
+    static final int POLICY_COUNT = 3;
+
+    private static final String[] POLICY_NAMES = {"drop-newest", "drop-oldest", "block"};
+
+    // Power of two.  A second of samples from several boards streaming per channel.
+    static final int DEFAULT_CAPACITY = 1024;
+    /** Longest attribute value ATT allows; longer values are dropped. */
+    static final int MAX_VALUE_LENGTH = 512;
+    static final long BLOCK_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // The worker wakes up this often even if nobody unparks it.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Evictions a producer tries under POLICY_DROP_OLDEST before giving up on its own value.
+    private static final int MAX_EVICTIONS = 4;
+
+    /** Where values end up.  Typically one per connection. */
+    interface Consumer {
+        /**
+         * Called on the worker thread, in the order values were offered.  {@code value} is
+         * only valid during the call.
+         */
+        void onValue(int tag, int handle, UUID uuid, byte[] value, long receivedNanos);
+
+        /** A value offered for this consumer was dropped.  Called on the dropping thread. */
+        void onValueDropped();
+
+        /**
+         * {@link #onValue} threw.  Called on the worker thread for the first failure of the
+         * pipeline and then for ever rarer ones, so a decoding bug gets logged without
+         * flooding the log.
+         *
+         * @param failures consumer failures of the pipeline so far, this one included.
+         */
+        void onValueFailed(RuntimeException e, long failures);
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    // Vyukov's bounded queue: a slot at position p is free for the producer of p when its
+    // sequence is p, and holds the value of p for consumers when it is p + 1.
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final Consumer[] mConsumers;
+    private final int[] mTags;
+    private final int[] mHandles;
+    private final UUID[] mUuids;
+    private final long[] mReceivedNanos;
+    private final int[] mLengths;
+    private final byte[][] mValues;
+    // Exact-length copies handed to consumers, by length; worker thread only.
+    private final byte[][] mScratch = new byte[MAX_VALUE_LENGTH + 1][];
+
+    private volatile int mPolicy = POLICY_DROP_NEWEST;
+    private volatile Thread mWorker;
+    private volatile boolean mRunning;
+    private volatile boolean mWorkerParked;
+
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mBlocked = new AtomicLong();
+    private final AtomicLong mConsumerFailures = new AtomicLong();
+    // Written by the worker only.
+    private volatile long mDelivered;
+    private volatile int mMaxDepth;
+
+    IngestionPipeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    IngestionPipeline(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+        mConsumers = new Consumer[capacity];
+        mTags = new int[capacity];
+        mHandles = new int[capacity];
+        mUuids = new UUID[capacity];
+        mReceivedNanos = new long[capacity];
+        mLengths = new int[capacity];
+        mValues = new byte[capacity][MAX_VALUE_LENGTH];
+    }
+
+    static String nameOfPolicy(int policy) {
+        return POLICY_NAMES[policy];
+    }
+
+    /** Sets what happens when the ring is full; takes effect for the next value. */
+    void setPolicy(int policy) {
+        if (policy < 0 || policy >= POLICY_COUNT) {
+            throw new IllegalArgumentException("Unknown ingestion policy " + policy);
+        }
+        mPolicy = policy;
+    }
+
+    int getPolicy() {
+        return mPolicy;
+    }
+
+    /** Starts the worker thread, if it isn't running. */
+    synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        final Thread worker = new Thread(mWorkerLoop, "GattIngestion");
+        worker.setDaemon(true);
+        mWorker = worker;
+        worker.start();
+    }
+
+    /** Stops the worker thread after the value it is on; queued values stay queued. */
+    synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        final Thread worker = mWorker;
+        mWorker = null;
+        LockSupport.unpark(worker);
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Queues a value for {@code consumer}, copying it.  Never blocks, except under
+     * {@link #POLICY_BLOCK} while the ring is full.
+     *
+     * @param tag passed back to the consumer as is, e.g. to tell links apart.
+     * @return false if the value was dropped.
+     */
+    boolean offer(Consumer consumer, int tag, int handle, UUID uuid, byte[] value,
+                  long receivedNanos) {
+        mOffered.incrementAndGet();
+        final int length = value == null ? 0 : value.length;
+        long position = length > MAX_VALUE_LENGTH ? -1 : claim(mTail, 0);
+        if (position < 0 && length <= MAX_VALUE_LENGTH) {
+            position = onFull();
+        }
+        if (position < 0) {
+            mDropped.incrementAndGet();
+            consumer.onValueDropped();
+            return false;
+        }
+        final int slot = (int) position & mMask;
+        mConsumers[slot] = consumer;
+        mTags[slot] = tag;
+        mHandles[slot] = handle;
+        mUuids[slot] = uuid;
+        mReceivedNanos[slot] = receivedNanos;
+        mLengths[slot] = length;
+        if (length > 0) {
+            System.arraycopy(value, 0, mValues[slot], 0, length);
+        }
+        // A volatile write, so the check below can't be reordered ahead of it.
+        mSequences.set(slot, position + 1);
+        if (mWorkerParked) {
+            LockSupport.unpark(mWorker);
+        }
+        return true;
+    }
+
+    /** Values queued and not yet taken by the worker. */
+    int getDepth() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    /** Deepest the ring has been when the worker took a value. */
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    long getOfferedCount() {
+        return mOffered.get();
+    }
+
+    long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /** Values that found the ring full under {@link #POLICY_BLOCK} and had to wait. */
+    long getBlockedCount() {
+        return mBlocked.get();
+    }
+
+    /** Values whose consumer threw; the worker carries on with the next one. */
+    long getConsumerFailureCount() {
+        return mConsumerFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s, %d/%d queued (max %d), %d offered, %d delivered,"
+                        + " %d dropped, %d blocked, %d consumer failures",
+                POLICY_NAMES[mPolicy], getDepth(), mCapacity, mMaxDepth, getOfferedCount(),
+                getDeliveredCount(), getDroppedCount(), getBlockedCount(),
+                getConsumerFailureCount());
+    }
+
+    // Makes room for a value in a full ring according to the policy; returns the claimed
+    // position, or -1 to drop the value.
+    private long onFull() {
+        switch (mPolicy) {
+            case POLICY_DROP_OLDEST:
+                for (int i = 0; i < MAX_EVICTIONS; i++) {
+                    evictOldest();
+                    final long position = claim(mTail, 0);
+                    if (position >= 0) {
+                        return position;
+                    }
+                }
+                return -1;
+            case POLICY_BLOCK:
+                mBlocked.incrementAndGet();
+                final long deadline = System.nanoTime() + BLOCK_TIMEOUT_NANOS;
+                long position;
+                while ((position = claim(mTail, 0)) < 0 && System.nanoTime() < deadline) {
+                    LockSupport.unpark(mWorker);
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                }
+                return position;
+            default:
+                return -1;
+        }
+    }
+
+    private void evictOldest() {
+        final long position = claim(mHead, 1);
+        if (position < 0) {
+            return;
+        }
+        final int slot = (int) position & mMask;
+        final Consumer consumer = mConsumers[slot];
+        mConsumers[slot] = null;
+        mUuids[slot] = null;
+        mSequences.set(slot, position + mCapacity);
+        mDropped.incrementAndGet();
+        consumer.onValueDropped();
+    }
+
+    // Claims the next position of the producer (ready = 0) or consumer (ready = 1) side, or
+    // returns -1 if the ring is full, or empty, respectively.
+    private long claim(AtomicLong cursor, int ready) {
+        while (true) {
+            final long position = cursor.get();
+            final long difference = mSequences.get((int) position & mMask) - (position + ready);
+            if (difference == 0) {
+                if (cursor.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                return -1;
+            }
+            // Another thread claimed this position first; try the next one.
+        }
+    }
+
+    private final Runnable mWorkerLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (mRunning) {
+                final long position = claim(mHead, 1);
+                if (position < 0) {
+                    mWorkerParked = true;
+                    // Re-check after announcing it, so a value offered meanwhile isn't missed.
+                    if (mTail.get() == mHead.get() && mRunning) {
+                        LockSupport.parkNanos(IngestionPipeline.this, IDLE_PARK_NANOS);
+                    }
+                    mWorkerParked = false;
+                    continue;
+                }
+                deliver(position);
+            }
+        }
+    };
+
+    private void deliver(long position) {
+        final int depth = (int) (mTail.get() - position);
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        final int slot = (int) position & mMask;
+        final Consumer consumer = mConsumers[slot];
+        final int tag = mTags[slot];
+        final int handle = mHandles[slot];
+        final UUID uuid = mUuids[slot];
+        final long receivedNanos = mReceivedNanos[slot];
+        final int length = mLengths[slot];
+        byte[] value = mScratch[length];
+        if (value == null) {
+            value = new byte[length];
+            mScratch[length] = value;
+        }
+        System.arraycopy(mValues[slot], 0, value, 0, length);
+        mConsumers[slot] = null;
+        mUuids[slot] = null;
+        // The slot is free again before the consumer runs.
+        mSequences.set(slot, position + mCapacity);
+        mDelivered++;
+        try {
+            consumer.onValue(tag, handle, uuid, value, receivedNanos);
+        } catch (RuntimeException e) {
+            final long failures = mConsumerFailures.incrementAndGet();
+            // Reported at 1, 2, 4, 8... failures.
+            if ((failures & (failures - 1)) == 0) {
+                consumer.onValueFailed(e, failures);
+            }
+        }
+    }
+}
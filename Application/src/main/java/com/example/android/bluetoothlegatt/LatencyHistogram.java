@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in fixed log-linear buckets: 16 per power of two of microseconds,
+ * up to a bit over two minutes, so percentiles are within about 6%.  {@link #record} is
+ * lock-free and doesn't allocate, so it can sit on the data path.  Readers running alongside
+ * writers may see a sample in the count before its bucket, which is harmless for reporting.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Longer durations land in the last bucket.
+    private static final int MAX_EXPONENT = 27;
+    private static final long MAX_MICROS = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(indexOf(Math.min(nanos / 1000, MAX_MICROS)));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, nanos)) {
+            // Lost a race with another writer; retry against its maximum.
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanNanos() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / count;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Returns the duration that {@code fraction} of the recorded ones don't exceed, rounded up
+     * to its bucket's upper end but never past the maximum; 0 if nothing was recorded.
+     */
+    public long getPercentileNanos(double fraction) {
+        long total = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            total += mBuckets.get(index);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        final long max = mMaxNanos.get();
+        long seen = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            seen += mBuckets.get(index);
+            if (seen >= rank) {
+                return Math.min((upperMicrosOf(index) + 1) * 1000 - 1, max);
+            }
+        }
+        return max;
+    }
+
+    /** Adds everything recorded in {@code other} to this histogram. */
+    public void add(LatencyHistogram other) {
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            final long count = other.mBuckets.get(index);
+            if (count != 0) {
+                mBuckets.addAndGet(index, count);
+            }
+        }
+        mCount.addAndGet(other.mCount.get());
+        mTotalNanos.addAndGet(other.mTotalNanos.get());
+        final long otherMax = other.mMaxNanos.get();
+        long max;
+        while (otherMax > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, otherMax)) {
+            // Retry, as in record().
+        }
+    }
+
+    /** Forgets everything recorded.  Samples recorded meanwhile may be partly kept. */
+    public void reset() {
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            mBuckets.set(index, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d, mean %.2fms, p50 %.2fms, p90 %.2fms, p99 %.2fms,"
+                        + " max %.2fms",
+                getCount(), getMeanNanos() / 1e6, getPercentileNanos(0.5) / 1e6,
+                getPercentileNanos(0.9) / 1e6, getPercentileNanos(0.99) / 1e6,
+                getMaxNanos() / 1e6);
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperMicrosOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Newest value of each sensor channel, for a reader that only shows the latest one, such as a
+ * screen redrawn once per display frame.  The writer overwrites; the reader picks up each
+ * channel's newest value if it changed since it last looked.  However fast samples arrive, the
+ * reader's work stays one check per channel.
+ *
+ * <p>One writer thread and one reader thread.  Neither blocks nor allocates.
+ */
+final class LatestSamples {
+    /** Returned by {@link #poll} when a channel has no new value. */
+    static final int UNCHANGED = Integer.MIN_VALUE;
+
+    // Per channel: number of updates in the high 48 bits and the value in the low 16, so one
+    // volatile store publishes both.
+    private final AtomicLongArray mSlots;
+    // Update count each channel had at the last poll; reader thread only.
+    private final long[] mPolled;
+
+    LatestSamples(int channels) {
+        mSlots = new AtomicLongArray(channels);
+        mPolled = new long[channels];
+    }
+
+    /** Replaces the value of a channel.  Channels out of range are ignored. */
+    void set(int channel, short value) {
+        if (channel < 0 || channel >= mPolled.length) {
+            return;
+        }
+        final long updates = (mSlots.get(channel) >>> 16) + 1;
+        mSlots.set(channel, (updates << 16) | (value & 0xffff));
+    }
+
+    /**
+     * Returns the newest value of a channel if it was set since the last poll, or
+     * {@link #UNCHANGED}.
+     */
+    int poll(int channel) {
+        final long slot = mSlots.get(channel);
+        final long updates = slot >>> 16;
+        if (updates == mPolled[channel]) {
+            return UNCHANGED;
+        }
+        mPolled[channel] = updates;
+        return (short) slot;
+    }
+
+    /** Forgets values not polled yet, e.g. once the screen shows there is no data. */
+    void discard() {
+        for (int channel = 0; channel < mPolled.length; channel++) {
+            mPolled[channel] = mSlots.get(channel) >>> 16;
+        }
+    }
+}
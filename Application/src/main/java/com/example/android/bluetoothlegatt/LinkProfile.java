@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Named trade-offs between latency and power for a connection, set through
+ * {@link BluetoothLeService#setLinkProfile(int)}.  A profile picks the connection priority and
+ * how sensor data is fetched:
+ *
+ * <ul>
+ * <li>{@link #HIGH_THROUGHPUT}: shortest connection interval, notifications, fast polling.
+ * For live motor control.</li>
+ * <li>{@link #BALANCED}: the platform's default parameters.</li>
+ * <li>{@link #LOW_POWER}: long connection interval; per-channel notifications are replaced by
+ * slow polling.  Packed frames still notify, as they already batch samples.  For logging.</li>
+ * </ul>
+ */
+public final class LinkProfile {
+    public static final int HIGH_THROUGHPUT = 0;
+    public static final int BALANCED = 1;
+    public static final int LOW_POWER = 2;
+    public static final int COUNT = 3;
+
+    private static final String[] NAMES = {"high-throughput", "balanced", "low-power"};
+    // Poll periods are scaled by POLL_SCALE_NUM / POLL_SCALE_DEN.
+    private static final int[] POLL_SCALE_NUM = {1, 1, 4};
+    private static final int[] POLL_SCALE_DEN = {2, 1, 1};
+
+    private LinkProfile() {
+    }
+
+    public static String nameOf(int profile) {
+        return NAMES[profile];
+    }
+
+    static void check(int profile) {
+        if (profile < 0 || profile >= COUNT) {
+            throw new IllegalArgumentException("Unknown link profile " + profile);
+        }
+    }
+
+    /** Adjusts a balanced-profile polling period to {@code profile}. */
+    static long scalePollPeriod(int profile, long periodMs) {
+        return periodMs * POLL_SCALE_NUM[profile] / POLL_SCALE_DEN[profile];
+    }
+
+    /** Whether sensor characteristics should be subscribed rather than polled. */
+    static boolean prefersNotifications(int profile) {
+        return profile != LOW_POWER;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Locale;
+
+/**
+ * What a {@link LinkProfile} delivered: sample rate and GATT round-trip time while it was in
+ * effect on a connected link.  Obtained from
+ * {@link BluetoothLeService#getLinkProfileStats(int)}.
+ */
+public class LinkProfileStats {
+    public int profile;
+    /** Connected time spent in this profile. */
+    public long activeNanos;
+    public long samples;
+    /** GATT operations completed, and the sum of their issue-to-completion times. */
+    public long operations;
+    public long totalRttNanos;
+
+    public float getSamplesPerSecond() {
+        return activeNanos == 0 ? 0f : samples * 1e9f / activeNanos;
+    }
+
+    /** Mean round trip of reads and acknowledged writes, or 0 if there were none. */
+    public long getMeanRttNanos() {
+        return operations == 0 ? 0 : totalRttNanos / operations;
+    }
+
+    /**
+     * Adds another connection's figures.  Active time adds up too, so the sample rate is per
+     * connection.
+     */
+    void add(LinkProfileStats other) {
+        activeNanos += other.activeNanos;
+        samples += other.samples;
+        operations += other.operations;
+        totalRttNanos += other.totalRttNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s: %.1fs connected, %.1f samples/s, rtt mean %.1fms over %d ops",
+                LinkProfile.nameOf(profile), activeNanos / 1e9, getSamplesPerSecond(),
+                getMeanRttNanos() / 1e6, operations);
+    }
+}
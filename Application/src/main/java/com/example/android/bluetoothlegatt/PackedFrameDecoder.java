@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Unpacks the multi-sample sensor frames sent on
+ * {@link SampleGattAttributes#SENSOR_FRAME}.  All fields are little-endian:
+ *
+ * <pre>
+ * offset 0  u16  sequence number, +1 per frame
+ * offset 2  u32  board time of the first sample, microseconds
+ * offset 6  u16  time between samples, microseconds
+ * offset 8  N x {i16 roll, i16 pitch, i16 temperature}, hundredths
+ * </pre>
+ *
+ * With a 247-byte MTU a frame carries up to 39 samples of every channel.  Board time is mapped
+ * onto {@link System#nanoTime()} using the arrival of the frames.  One decoder per connection;
+ * not thread safe.
+ */
+public final class PackedFrameDecoder implements CharacteristicCodec {
+    public static final int HEADER_LENGTH = 8;
+    public static final int SAMPLE_LENGTH = 2 * SensorSample.CHANNEL_COUNT;
+
+    // Re-anchor the board clock when mapped times drift this far from the arrival time, e.g.
+    // after the board restarted.
+    private static final long MAX_SKEW_NANOS = 1000000000L;
+
+    private boolean mSynced;
+    private int mLastSequence;
+    // Board time of the last frame, extended past the 32-bit wrap.
+    private long mLastBoardMicros;
+    // nanoTime() minus board time in nanoseconds.
+    private long mClockOffsetNanos;
+
+    private long mFrames;
+    private long mLostFrames;
+    private long mMalformed;
+
+    /**
+     * Decodes one frame, handing each sample to {@code sink} in order of time and, within a
+     * time, in channel order.
+     *
+     * @param receivedNanos {@link System#nanoTime()} at which the frame arrived.
+     * @return the number of samples decoded, or -1 if the frame is malformed.
+     */
+    @Override
+    public int decode(byte[] frame, long receivedNanos, SensorSample out, Sink sink) {
+        if (frame == null || frame.length < HEADER_LENGTH
+                || (frame.length - HEADER_LENGTH) % SAMPLE_LENGTH != 0) {
+            mMalformed++;
+            return -1;
+        }
+        final int sequence = readUint16(frame, 0);
+        final long base = readUint32(frame, 2);
+        final int interval = readUint16(frame, 6);
+        final int count = (frame.length - HEADER_LENGTH) / SAMPLE_LENGTH;
+
+        long boardMicros;
+        if (mSynced) {
+            mLostFrames += (sequence - mLastSequence - 1) & 0xffff;
+            boardMicros = mLastBoardMicros + ((base - mLastBoardMicros) & 0xffffffffL);
+        } else {
+            boardMicros = base;
+        }
+        // Anchor so that the last sample of the frame lands on its arrival time.
+        final long lastNanos = (boardMicros + (long) (count - 1) * interval) * 1000;
+        final long skew = lastNanos + mClockOffsetNanos - receivedNanos;
+        if (!mSynced || skew > 0 || skew < -MAX_SKEW_NANOS) {
+            // A frame can't arrive before its last sample was taken; the offset only ever moves
+            // towards the smallest observed delay.
+            mClockOffsetNanos = receivedNanos - lastNanos;
+        }
+        mSynced = true;
+        mLastSequence = sequence;
+        mLastBoardMicros = boardMicros;
+        mFrames++;
+
+        final long intervalNanos = interval * 1000L;
+        long timestamp = boardMicros * 1000 + mClockOffsetNanos;
+        int offset = HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            for (int channel = 0; channel < SensorSample.CHANNEL_COUNT; channel++) {
+                out.set(channel, SampleDecoder.decodeInt16Le(frame, offset), timestamp);
+                sink.onSample(out);
+                offset += 2;
+            }
+            timestamp += intervalNanos;
+        }
+        return count * SensorSample.CHANNEL_COUNT;
+    }
+
+    @Override
+    public int getCommandLength() {
+        return 0;
+    }
+
+    @Override
+    public int encode(int command, byte[] out) {
+        return -1;
+    }
+
+    /** Forgets sequence and clock state, e.g. after a reconnect. */
+    @Override
+    public void reset() {
+        mSynced = false;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /** Frames missing from the sequence numbers seen so far. */
+    public long getLostFrameCount() {
+        return mLostFrames;
+    }
+
+    public long getMalformedCount() {
+        return mMalformed;
+    }
+
+    private static int readUint16(byte[] data, int offset) {
+        return (data[offset + 1] & 0xff) << 8 | data[offset] & 0xff;
+    }
+
+    private static long readUint32(byte[] data, int offset) {
+        return ((long) readUint16(data, offset + 2) << 16) | readUint16(data, offset);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decides how a connection comes back after an unexpected link loss, and measures how long
+ * that took.  The first attempt is a direct connect right away, which catches the common case
+ * of a short RF dropout.  Further direct attempts back off exponentially; after
+ * {@link #DIRECT_ATTEMPTS} of them the connection is left to a background (autoConnect)
+ * connect, which waits for the device as long as it takes without keeping the radio busy.
+ *
+ * <p>A disconnect the user asked for disables reconnecting until the next connect.
+ */
+class ReconnectPolicy {
+    static final int ATTEMPT_DIRECT = 0;
+    static final int ATTEMPT_BACKGROUND = 1;
+
+    static final int DIRECT_ATTEMPTS = 6;
+    private static final long BASE_DELAY_MS = 250;
+    private static final long MAX_DELAY_MS = 8000;
+
+    private boolean mEnabled;
+    private int mAttempts;
+    // nanoTime() at which the link was lost, or 0 while it's up.
+    private long mOutageStart;
+
+    private long mReconnects;
+    private long mTotalAttempts;
+    private long mTotalOutageNanos;
+    private long mMaxOutageNanos;
+    private long mLastOutageNanos;
+
+    /** Reconnecting is enabled by a user connect and disabled by a user disconnect. */
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            // An outage the user ended isn't one we failed to recover from.
+            mOutageStart = 0;
+            mAttempts = 0;
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Called when the link went down, or an attempt to bring it back failed.
+     *
+     * @return the delay before the next attempt, or -1 if reconnecting is disabled.
+     */
+    synchronized long onLinkLost(long nowNanos) {
+        if (!mEnabled) {
+            return -1;
+        }
+        if (mOutageStart == 0) {
+            mOutageStart = nowNanos;
+            mAttempts = 0;
+        }
+        if (mAttempts == 0) {
+            return 0;
+        }
+        if (mAttempts > DIRECT_ATTEMPTS) {
+            // A background connect failed outright, e.g. Bluetooth was turned off; start
+            // another one.
+            return MAX_DELAY_MS;
+        }
+        return Math.min(BASE_DELAY_MS << (mAttempts - 1), MAX_DELAY_MS);
+    }
+
+    /** Returns the kind of the attempt about to be made, and counts it. */
+    synchronized int nextAttempt() {
+        mAttempts++;
+        mTotalAttempts++;
+        return mAttempts > DIRECT_ATTEMPTS ? ATTEMPT_BACKGROUND : ATTEMPT_DIRECT;
+    }
+
+    /** Called once the link is usable again, i.e. services are discovered. */
+    synchronized void onLinkReady(long nowNanos) {
+        if (mOutageStart == 0) {
+            return;
+        }
+        final long outage = nowNanos - mOutageStart;
+        mOutageStart = 0;
+        mAttempts = 0;
+        mReconnects++;
+        mTotalOutageNanos += outage;
+        mLastOutageNanos = outage;
+        if (outage > mMaxOutageNanos) {
+            mMaxOutageNanos = outage;
+        }
+    }
+
+    synchronized boolean isReconnecting() {
+        return mOutageStart != 0;
+    }
+
+    synchronized long getReconnectCount() {
+        return mReconnects;
+    }
+
+    synchronized long getAttemptCount() {
+        return mTotalAttempts;
+    }
+
+    /** Mean time from link loss to discovered services, over completed reconnects. */
+    synchronized long getMeanReconnectNanos() {
+        return mReconnects == 0 ? 0 : mTotalOutageNanos / mReconnects;
+    }
+
+    synchronized long getMaxReconnectNanos() {
+        return mMaxOutageNanos;
+    }
+
+    synchronized long getLastReconnectNanos() {
+        return mLastOutageNanos;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Reads the little-endian int16 fields the board uses everywhere.  Characteristic values are
+ * decoded by the {@link CharacteristicCodec} registered for them in a {@link CodecTable}.
+ */
+public final class SampleDecoder {
+    private SampleDecoder() {
+    }
+
+    public static short decodeInt16Le(byte[] data, int offset) {
+        return (short) (data[offset + 1] << 8 | data[offset] & 0xff);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Formats fixed-point sensor values into caller-owned char buffers, so the UI can display a
+ * sample with {@code TextView.setText(char[], int, int)} without creating Strings.
+ */
+public final class SampleFormatter {
+    public static final String UNIT_DEGREE = " \u00b0";
+    public static final String UNIT_CELSIUS = " \u2103";
+
+    /** Large enough for "-327.68" plus either unit. */
+    public static final int MAX_LENGTH = 16;
+
+    private SampleFormatter() {
+    }
+
+    /**
+     * Writes {@code hundredths / 100} with two decimals followed by {@code unit} into
+     * {@code out}.
+     *
+     * @return the number of chars written.
+     */
+    public static int formatHundredths(int hundredths, String unit, char[] out) {
+        int pos = 0;
+        int abs = hundredths;
+        if (hundredths < 0) {
+            out[pos++] = '-';
+            abs = -hundredths;
+        }
+        pos = writeDigits(abs / SensorSample.SCALE, out, pos);
+        final int fraction = abs % SensorSample.SCALE;
+        out[pos++] = '.';
+        out[pos++] = (char) ('0' + fraction / 10);
+        out[pos++] = (char) ('0' + fraction % 10);
+        unit.getChars(0, unit.length(), out, pos);
+        return pos + unit.length();
+    }
+
+    private static int writeDigits(int value, char[] out, int pos) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+}
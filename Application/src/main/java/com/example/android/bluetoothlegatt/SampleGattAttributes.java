@@ -16,19 +16,28 @@
 
 package com.example.android.bluetoothlegatt;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
 
 /**
  * This class includes a small subset of standard GATT attributes for demonstration purposes.
+ * Vendor profiles, such as our boards', are loaded from {@link #PROFILE_ASSET}.
  */
 public class SampleGattAttributes {
-    private static HashMap<String, String> attributes = new HashMap();
+    /** Asset listing vendor attributes, in the format of {@link UuidRegistry#load}. */
+    public static final String PROFILE_ASSET = "gatt_attributes.txt";
 
-    //measurement - read
+    private static final UuidRegistry attributes = new UuidRegistry();
+
+    //measurement - read (notify where the firmware supports it)
+    public static String SENSOR_SERVICE =               "42821a40-e477-11e2-82d0-0002a5d5c51b";
     public static String HEART_RATE_MEASUREMENT =       "00002a37-0000-1000-8000-00805f9b34fb";
     public static String TEMP_MEASUREMENT =             "a32e5520-e477-11e2-a9e3-0002a5d5c51b";
     public static String PITCH_MEASUREMENT =            "cd20c480-e48b-11e2-840b-0002a5d5c51b";
     public static String ROLL_MEASUREMENT =             "01c50b60-e48c-11e2-a073-0002a5d5c51b";
+    // Packed roll/pitch/temperature frames (notify), see PackedFrameDecoder.
+    public static String SENSOR_FRAME =                 "42821a41-e477-11e2-82d0-0002a5d5c51b";
 
     //double tap - notify
     public static String DT_SERVICE =                   "02366e80-cf3a-11e1-9ab4-0002a5d5c51b";
@@ -38,18 +47,30 @@ public class SampleGattAttributes {
     public static String SAMPLE_CHARA =                 "340a1b80-cf4b-11e1-ac36-0002a5d5c51b";
 
     public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    public static String GENERIC_ATTRIBUTE_SERVICE =    "00001801-0000-1000-8000-00805f9b34fb";
+    public static String SERVICE_CHANGED =              "00002a05-0000-1000-8000-00805f9b34fb";
 
     static {
         // Sample Services.
         attributes.put("0000180d-0000-1000-8000-00805f9b34fb", "Heart Rate Service");
         attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
+        attributes.put(GENERIC_ATTRIBUTE_SERVICE, "Generic Attribute");
         // Sample Characteristics.
         attributes.put(HEART_RATE_MEASUREMENT, "Heart Rate Measurement");
         attributes.put("00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name String");
-        //required Characteristics
-        attributes.put(TEMP_MEASUREMENT, "temperature measurement");
-        attributes.put(PITCH_MEASUREMENT, "pitch measurement");
-        attributes.put(ROLL_MEASUREMENT, "roll measurement");
-        attributes.put(DOUBLE_TAP_CHARA, "double tap notification");
+        attributes.put(SERVICE_CHANGED, "Service Changed");
+    }
+
+    /** Adds the attributes of a vendor profile file; see {@link UuidRegistry#load}. */
+    public static int loadProfile(InputStream in) throws IOException {
+        return attributes.load(in);
+    }
+
+    public static String lookup(UUID uuid, String defaultName) {
+        return attributes.lookup(uuid, defaultName);
+    }
+
+    public static UuidRegistry getRegistry() {
+        return attributes;
     }
 }
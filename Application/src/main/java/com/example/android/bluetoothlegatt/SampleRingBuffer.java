@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Fixed-capacity history of one sensor channel: timestamps in a {@code long[]} and values in a
+ * {@code short[]}, so nothing is boxed and nothing is allocated per sample.
+ *
+ * <p>There is a single writer (the thread decoding samples for the connection that owns it)
+ * and any number of readers.  The writer publishes each sample by advancing a volatile write
+ * count; readers copy a window into their own arrays and then re-check the count, discarding
+ * anything the writer lapped while they were copying.  Readers never block the writer.
+ */
+public class SampleRingBuffer {
+    private final int mCapacity;
+    private final int mMask;
+    private final long[] mTimestamps;
+    private final short[] mValues;
+    // Number of samples ever written; the newest is at (mWriteCount - 1) & mMask.
+    private volatile long mWriteCount;
+
+    /**
+     * @param capacity number of samples kept; rounded up to a power of two.
+     */
+    public SampleRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mTimestamps = new long[size];
+        mValues = new short[size];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Returns the number of samples ever written. */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /** Appends a sample.  Must only be called from the writer thread. */
+    public void add(long timestampNanos, short value) {
+        final long count = mWriteCount;
+        final int index = (int) (count & mMask);
+        mTimestamps[index] = timestampNanos;
+        mValues[index] = value;
+        mWriteCount = count + 1;
+    }
+
+    /**
+     * Copies the samples received at or after {@code sinceNanos}, oldest first, limited to the
+     * newest {@code timestamps.length} of them.
+     *
+     * @return the number of samples copied.
+     */
+    public int snapshot(long sinceNanos, long[] timestamps, short[] values) {
+        final long end = mWriteCount;
+        final long oldest = Math.max(0, end - mCapacity);
+        final int max = Math.min(timestamps.length, values.length);
+        // Walk back from the newest sample to find where the window starts.
+        long start = end;
+        while (start > oldest && end - start < max
+                && mTimestamps[(int) ((start - 1) & mMask)] >= sinceNanos) {
+            start--;
+        }
+        return copy(start, end, timestamps, values);
+    }
+
+    /**
+     * Copies the newest {@code count} samples, oldest first.
+     *
+     * @return the number of samples copied.
+     */
+    public int latest(int count, long[] timestamps, short[] values) {
+        final long end = mWriteCount;
+        final int max = Math.min(count, Math.min(timestamps.length, values.length));
+        final long start = Math.max(Math.max(0, end - mCapacity), end - max);
+        return copy(start, end, timestamps, values);
+    }
+
+    private int copy(long start, long end, long[] timestamps, short[] values) {
+        int copied = 0;
+        for (long i = start; i < end; i++) {
+            final int index = (int) (i & mMask);
+            timestamps[copied] = mTimestamps[index];
+            values[copied] = mValues[index];
+            copied++;
+        }
+        // Anything a full capacity behind the current write count may have been overwritten
+        // while we were copying (the slot at exactly one capacity back can be mid-write); drop
+        // it from the front.
+        final long overwritten = mWriteCount - mCapacity + 1 - start;
+        if (overwritten > 0) {
+            final int lost = (int) Math.min(overwritten, copied);
+            copied -= lost;
+            System.arraycopy(timestamps, lost, timestamps, 0, copied);
+            System.arraycopy(values, lost, values, 0, copied);
+        }
+        return copied;
+    }
+}
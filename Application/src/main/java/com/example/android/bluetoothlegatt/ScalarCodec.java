@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Codec for characteristics that carry a single number: signed or unsigned 16-bit integers,
+ * 32-bit integers, fixed point and IEEE 754 floats.  Decoded values are converted to the
+ * hundredths {@link SensorSample} works in with {@code raw * numerator / denominator} and
+ * clamped to its range; commands go the other way.  Instances are immutable and can be shared
+ * by every connection.
+ */
+public final class ScalarCodec implements CharacteristicCodec {
+    public static final int FORMAT_SINT16 = 0;
+    public static final int FORMAT_UINT16 = 1;
+    public static final int FORMAT_SINT32 = 2;
+    public static final int FORMAT_FLOAT32 = 3;
+
+    /** Channel of codecs that only encode commands; they decode nothing. */
+    public static final int CHANNEL_NONE = -1;
+
+    private final int mChannel;
+    private final int mFormat;
+    private final boolean mBigEndian;
+    private final int mNumerator;
+    private final int mDenominator;
+    private final int mLength;
+
+    /**
+     * @param channel the {@link SensorSample} channel of decoded values, or
+     *     {@link #CHANNEL_NONE}.
+     * @param numerator multiplier from raw values to hundredths.
+     * @param denominator divisor from raw values to hundredths.
+     */
+    public ScalarCodec(int channel, int format, boolean bigEndian, int numerator,
+                       int denominator) {
+        if (numerator == 0 || denominator == 0) {
+            throw new IllegalArgumentException("Zero scale " + numerator + "/" + denominator);
+        }
+        mChannel = channel;
+        mFormat = format;
+        mBigEndian = bigEndian;
+        mNumerator = numerator;
+        mDenominator = denominator;
+        switch (format) {
+            case FORMAT_SINT16:
+            case FORMAT_UINT16:
+                mLength = 2;
+                break;
+            case FORMAT_SINT32:
+            case FORMAT_FLOAT32:
+                mLength = 4;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    /** Little-endian int16 already in hundredths, which is what the board sends. */
+    public static ScalarCodec sint16(int channel) {
+        return new ScalarCodec(channel, FORMAT_SINT16, false, 1, 1);
+    }
+
+    /** Little-endian uint16 scaled to hundredths by {@code numerator / denominator}. */
+    public static ScalarCodec uint16(int channel, int numerator, int denominator) {
+        return new ScalarCodec(channel, FORMAT_UINT16, false, numerator, denominator);
+    }
+
+    /** Little-endian signed fixed point with {@code fractionBits} bits after the point. */
+    public static ScalarCodec fixedPoint(int channel, int fractionBits) {
+        if (fractionBits < 0 || fractionBits > 15) {
+            throw new IllegalArgumentException("Bad fraction bits " + fractionBits);
+        }
+        return new ScalarCodec(channel, FORMAT_SINT16, false, SensorSample.SCALE,
+                1 << fractionBits);
+    }
+
+    /** Little-endian IEEE 754 float in the channel's unit. */
+    public static ScalarCodec float32(int channel) {
+        return new ScalarCodec(channel, FORMAT_FLOAT32, false, SensorSample.SCALE, 1);
+    }
+
+    @Override
+    public int decode(byte[] value, long receivedNanos, SensorSample out, Sink sink) {
+        if (value == null || value.length < mLength) {
+            return -1;
+        }
+        if (mChannel == CHANNEL_NONE) {
+            return 0;
+        }
+        long hundredths;
+        if (mFormat == FORMAT_FLOAT32) {
+            hundredths = Math.round(Float.intBitsToFloat((int) readRaw(value))
+                    * mNumerator / mDenominator);
+        } else {
+            hundredths = readRaw(value) * mNumerator / mDenominator;
+        }
+        if (hundredths > Short.MAX_VALUE) {
+            hundredths = Short.MAX_VALUE;
+        } else if (hundredths < Short.MIN_VALUE) {
+            hundredths = Short.MIN_VALUE;
+        }
+        out.set(mChannel, (short) hundredths, receivedNanos);
+        sink.onSample(out);
+        return 1;
+    }
+
+    @Override
+    public int getCommandLength() {
+        return mLength;
+    }
+
+    @Override
+    public int encode(int command, byte[] out) {
+        if (out.length < mLength) {
+            return -1;
+        }
+        final long raw;
+        if (mFormat == FORMAT_FLOAT32) {
+            raw = Float.floatToIntBits((float) command * mDenominator / mNumerator);
+        } else {
+            raw = (long) command * mDenominator / mNumerator;
+        }
+        for (int i = 0; i < mLength; i++) {
+            out[mBigEndian ? mLength - 1 - i : i] = (byte) (raw >> (8 * i));
+        }
+        return mLength;
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    public int getChannel() {
+        return mChannel;
+    }
+
+    // Reads the value as an integer of the codec's format, sign-extended for signed formats.
+    private long readRaw(byte[] value) {
+        long raw = 0;
+        for (int i = 0; i < mLength; i++) {
+            raw |= (long) (value[mBigEndian ? mLength - 1 - i : i] & 0xff) << (8 * i);
+        }
+        switch (mFormat) {
+            case FORMAT_SINT16:
+                return (short) raw;
+            case FORMAT_SINT32:
+            case FORMAT_FLOAT32:
+                return (int) raw;
+            default:
+                return raw;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Collects scan results off the main thread and hands the UI a snapshot of the devices seen,
+ * at most once per frame.  Results are deduplicated by address in a hash map, so a flood of
+ * advertisements costs a lookup each instead of a list scan and a redraw each.
+ *
+ * @param <D> the platform's device object, kept for connecting later.
+ */
+class ScanAggregator<D> {
+
+    /** A device seen by the scan, with its latest RSSI. */
+    static class Entry<D> {
+        String address;
+        D device;
+        int rssi;
+        long lastSeenNanos;
+        int seenCount;
+
+        void copyFrom(Entry<D> other) {
+            address = other.address;
+            device = other.device;
+            rssi = other.rssi;
+            lastSeenNanos = other.lastSeenNanos;
+            seenCount = other.seenCount;
+        }
+    }
+
+    private final HashMap<String, Entry<D>> mByAddress = new HashMap<String, Entry<D>>();
+    // First-seen order, so rows don't jump around as RSSI changes.
+    private final ArrayList<Entry<D>> mEntries = new ArrayList<Entry<D>>();
+    private boolean mChanged;
+    private long mResults;
+
+    /** Records one advertisement.  Called from the scan callback, at advertisement rate. */
+    synchronized void onResult(String address, D device, int rssi, long nowNanos) {
+        mResults++;
+        Entry<D> entry = mByAddress.get(address);
+        if (entry == null) {
+            entry = new Entry<D>();
+            entry.address = address;
+            mByAddress.put(address, entry);
+            mEntries.add(entry);
+        }
+        entry.device = device;
+        entry.rssi = rssi;
+        entry.lastSeenNanos = nowNanos;
+        entry.seenCount++;
+        mChanged = true;
+    }
+
+    /**
+     * Copies the current devices into {@code out}, reusing the entries already in it.
+     *
+     * @return false, leaving {@code out} alone, if nothing was seen since the last snapshot.
+     */
+    synchronized boolean snapshot(ArrayList<Entry<D>> out) {
+        if (!mChanged) {
+            return false;
+        }
+        mChanged = false;
+        final int size = mEntries.size();
+        while (out.size() > size) {
+            out.remove(out.size() - 1);
+        }
+        for (int i = 0; i < size; i++) {
+            if (i == out.size()) {
+                out.add(new Entry<D>());
+            }
+            out.get(i).copyFrom(mEntries.get(i));
+        }
+        return true;
+    }
+
+    synchronized void clear() {
+        mByAddress.clear();
+        mEntries.clear();
+        mChanged = true;
+    }
+
+    synchronized int getDeviceCount() {
+        return mEntries.size();
+    }
+
+    /** Advertisements seen since the aggregator was created. */
+    synchronized long getResultCount() {
+        return mResults;
+    }
+}
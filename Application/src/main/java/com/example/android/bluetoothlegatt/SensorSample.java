@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * One decoded sensor reading.  Values are fixed point in hundredths of the channel's unit
+ * (degrees for roll and pitch, degrees Celsius for temperature), which is how the board sends
+ * them.  Instances are preallocated and overwritten for every sample; consumers must copy out
+ * the fields they want to keep.
+ */
+public class SensorSample {
+    public static final int CHANNEL_ROLL = 0;
+    public static final int CHANNEL_PITCH = 1;
+    public static final int CHANNEL_TEMP = 2;
+    public static final int CHANNEL_COUNT = 3;
+
+    /** Divisor that turns {@link #value} into the channel's unit. */
+    public static final int SCALE = 100;
+
+    public int channel;
+    public short value;
+    /**
+     * {@link System#nanoTime()} at which the sample was received, or for samples from a packed
+     * frame, at which it was taken by the board.
+     */
+    public long timestampNanos;
+
+    public void set(int channel, short value, long timestampNanos) {
+        this.channel = channel;
+        this.value = value;
+        this.timestampNanos = timestampNanos;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records sensor samples of a session into append-only, memory-mapped segment files.
+ *
+ * <p>{@link #record} only copies the sample into a preallocated hand-off ring and returns; a
+ * dedicated thread drains the ring into the current segment, so disk I/O never runs on the
+ * thread that decodes samples.  If the writer falls a full ring behind, samples are dropped and
+ * counted rather than blocking the caller.
+ *
+ * <p>File format, little-endian.  Each segment starts with a {@value #HEADER_SIZE}-byte
+ * header: magic "BLES", version (u16), record size (u16), segment index (u32), reserved (u32),
+ * wall-clock millis (i64) and {@code System.nanoTime()} (i64) taken when the segment was
+ * opened, which anchor the record timestamps.  It is followed by {@value #RECORD_SIZE}-byte
+ * records:
+ * <pre>
+ *   0  type      1 = sample, 2 = device declaration
+ *   1  device    index assigned by the service
+ *   2  channel   SensorSample.CHANNEL_* (samples only)
+ *   3  check     XOR of the other 15 bytes, XOR 0x5A
+ *   4  value     i16, hundredths (samples only)
+ *   6  reserved
+ *   8  payload   i64: System.nanoTime() for samples, MAC address for declarations
+ * </pre>
+ * Every segment after the first starts with the declarations of all devices declared so far,
+ * so each segment decodes on its own.  Segments are preallocated and zero-filled, so the tail
+ * after a crash is simply the first record whose check byte doesn't match;
+ * {@link #countValidRecords} finds it.
+ */
+public class SessionRecorder {
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 16;
+    public static final int MAGIC = 0x53454c42; // "BLES" in little-endian
+    public static final short VERSION = 1;
+
+    static final byte TYPE_SAMPLE = 1;
+    static final byte TYPE_DEVICE = 2;
+
+    private static final int CHECK_SEED = 0x5a;
+    // Device indexes are stored in one byte.
+    private static final int MAX_DEVICES = 256;
+    // 4 MiB per segment: about a quarter million records.
+    private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int RING_SIZE = 16384;
+    private static final int RING_MASK = RING_SIZE - 1;
+    private static final long FSYNC_INTERVAL_NANOS = 1000000000L;
+    private static final long IDLE_PARK_NANOS = 2000000L;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+
+    // Hand-off ring between the callers of record() and the writer thread.
+    private final byte[] mTypes = new byte[RING_SIZE];
+    private final byte[] mDevices = new byte[RING_SIZE];
+    private final byte[] mChannels = new byte[RING_SIZE];
+    private final short[] mValues = new short[RING_SIZE];
+    private final long[] mPayloads = new long[RING_SIZE];
+    private volatile long mTail;
+    private volatile long mHead;
+    private long mDropped;
+
+    private volatile boolean mRunning;
+    private volatile IOException mError;
+    private Thread mWriter;
+
+    // Only touched by the writer thread.
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mSegment;
+    private int mSegmentIndex;
+    private long mRecordsWritten;
+    private long mLastSync;
+    // Addresses of the devices declared so far, replayed at the start of every segment.
+    private final boolean[] mDeclared = new boolean[MAX_DEVICES];
+    private final long[] mDeclaredAddresses = new long[MAX_DEVICES];
+
+    public SessionRecorder(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize bytes per segment file; raised if needed to hold a declaration of
+     *                    every device and at least one sample.
+     */
+    public SessionRecorder(File directory, int segmentSize) {
+        mDirectory = directory;
+        // Whole records only, after the header.
+        final int records = Math.max((segmentSize - HEADER_SIZE) / RECORD_SIZE, MAX_DEVICES + 1);
+        mSegmentSize = HEADER_SIZE + records * RECORD_SIZE;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /** Opens the first segment and starts the writer thread. */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        openSegment(0);
+        mRunning = true;
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SessionRecorder");
+        mWriter.start();
+    }
+
+    /**
+     * Flushes everything handed over so far, syncs it to disk and stops the writer thread.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mWriter);
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter = null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /** The I/O error that stopped the writer, or null. */
+    public IOException getError() {
+        return mError;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getRecordsWritten() {
+        return mRecordsWritten;
+    }
+
+    /**
+     * Declares which device an index stands for.  Call before recording its first sample.
+     *
+     * @param address MAC address in the usual "AA:BB:CC:DD:EE:FF" form.
+     */
+    public void declareDevice(int device, String address) {
+        offer(TYPE_DEVICE, device, 0, (short) 0, parseMac(address));
+    }
+
+    /** Hands a sample to the writer thread.  Never blocks and doesn't allocate. */
+    public void record(int device, int channel, short value, long timestampNanos) {
+        offer(TYPE_SAMPLE, device, channel, value, timestampNanos);
+    }
+
+    private synchronized void offer(byte type, int device, int channel, short value,
+                                    long payload) {
+        final long tail = mTail;
+        if (!mRunning || tail - mHead >= RING_SIZE) {
+            mDropped++;
+            return;
+        }
+        final int index = (int) (tail & RING_MASK);
+        mTypes[index] = type;
+        mDevices[index] = (byte) device;
+        mChannels[index] = (byte) channel;
+        mValues[index] = value;
+        mPayloads[index] = payload;
+        mTail = tail + 1;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                // Read the flag before draining so nothing handed over before stop() is lost.
+                final boolean running = mRunning;
+                final boolean drained = drain();
+                final long now = System.nanoTime();
+                if (now - mLastSync >= FSYNC_INTERVAL_NANOS) {
+                    mSegment.force();
+                    mLastSync = now;
+                }
+                if (!running) {
+                    break;
+                }
+                if (!drained) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+            mRunning = false;
+        } finally {
+            closeSegment();
+        }
+    }
+
+    // Writes out everything currently in the ring.  Returns false if it was empty.
+    private boolean drain() throws IOException {
+        final long tail = mTail;
+        long head = mHead;
+        if (head == tail) {
+            return false;
+        }
+        while (head < tail) {
+            if (mSegment.remaining() < RECORD_SIZE) {
+                openSegment(mSegmentIndex + 1);
+            }
+            final int index = (int) (head & RING_MASK);
+            if (mTypes[index] == TYPE_DEVICE) {
+                final int device = mDevices[index] & 0xff;
+                mDeclared[device] = true;
+                mDeclaredAddresses[device] = mPayloads[index];
+            }
+            writeRecord(mSegment, mTypes[index], mDevices[index], mChannels[index],
+                    mValues[index], mPayloads[index]);
+            mRecordsWritten++;
+            head++;
+        }
+        mHead = head;
+        return true;
+    }
+
+    private static void writeRecord(ByteBuffer out, byte type, byte device, byte channel,
+                                    short value, long payload) {
+        final int start = out.position();
+        out.put(type);
+        out.put(device);
+        out.put(channel);
+        out.put((byte) 0);
+        out.putShort(value);
+        out.putShort((short) 0);
+        out.putLong(payload);
+        out.put(start + 3, checkByte(out, start));
+    }
+
+    private static byte checkByte(ByteBuffer buffer, int start) {
+        int check = CHECK_SEED;
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            if (i != 3) {
+                check ^= buffer.get(start + i);
+            }
+        }
+        return (byte) check;
+    }
+
+    private void openSegment(int index) throws IOException {
+        closeSegment();
+        final File file = new File(mDirectory,
+                String.format(Locale.US, "segment-%05d.bin", index));
+        mFile = new RandomAccessFile(file, "rw");
+        mSegment = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        mSegment.order(ByteOrder.LITTLE_ENDIAN);
+        mSegment.putInt(MAGIC);
+        mSegment.putShort(VERSION);
+        mSegment.putShort((short) RECORD_SIZE);
+        mSegment.putInt(index);
+        mSegment.putInt(0);
+        mSegment.putLong(System.currentTimeMillis());
+        mSegment.putLong(System.nanoTime());
+        mSegmentIndex = index;
+        for (int device = 0; device < MAX_DEVICES; device++) {
+            if (mDeclared[device]) {
+                writeRecord(mSegment, TYPE_DEVICE, (byte) device, (byte) 0, (short) 0,
+                        mDeclaredAddresses[device]);
+                mRecordsWritten++;
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (mSegment != null) {
+            mSegment.force();
+            mSegment = null;
+        }
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // The mapping was already forced; nothing else to save.
+            }
+            mFile = null;
+        }
+    }
+
+    /**
+     * Returns the number of intact records in a segment, stopping at the first record whose
+     * check byte doesn't match.  Returns -1 if the header is not a segment header.
+     */
+    public static int countValidRecords(ByteBuffer segment) {
+        final ByteBuffer in = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < HEADER_SIZE || in.getInt(0) != MAGIC
+                || in.getShort(6) != RECORD_SIZE) {
+            return -1;
+        }
+        int count = 0;
+        for (int start = HEADER_SIZE; start + RECORD_SIZE <= in.limit(); start += RECORD_SIZE) {
+            final byte type = in.get(start);
+            if ((type != TYPE_SAMPLE && type != TYPE_DEVICE)
+                    || in.get(start + 3) != checkByte(in, start)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // "AA:BB:CC:DD:EE:FF" -> 0xAABBCCDDEEFF
+    private static long parseMac(String address) {
+        long mac = 0;
+        for (int i = 0; i < address.length(); i++) {
+            final int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                mac = mac << 4 | digit;
+            }
+        }
+        return mac;
+    }
+}
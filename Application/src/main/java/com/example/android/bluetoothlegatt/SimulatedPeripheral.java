@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GattTransport} backed by an in-process emulation of the sensor board: the sensor
+ * service with roll, pitch, temperature and packed frame characteristics, the double-tap
+ * service and the motor characteristic.  Latency, jitter, notification loss and the sample
+ * rate are set through a {@link Config}, so the data path can be load-tested on any JVM.
+ *
+ * <p>Everything the peripheral does runs on its executor, which also delivers the callbacks.
+ * Responses take one round trip and notifications one trip of the configured latency plus
+ * jitter; notifications are delivered in order, like on a real link.  Only notifications are
+ * ever lost: requests and their responses are retransmitted by the link layer.
+ *
+ * <p>The board's clock is {@link System#nanoTime()} in microseconds, so frame timestamps can
+ * be compared with host time.  With {@link #WAVEFORM_COUNTER} every channel carries the
+ * sample's index instead of a signal, and {@link #getSampleNanos} tells when it was taken.
+ */
+final class SimulatedPeripheral implements GattTransport {
+    static final int WAVEFORM_SINE = 0;
+    static final int WAVEFORM_COUNTER = 1;
+
+    /** Status of a link that dropped without being asked to, as Android reports it. */
+    static final int STATUS_CONNECTION_TIMEOUT = 8;
+
+    /** How the simulated board and link behave.  Read when the peripheral is created. */
+    static final class Config {
+        /** One-way latency of the link. */
+        public long latencyMicros = 7500;
+        /** Extra latency, uniformly distributed between 0 and this, per packet. */
+        public long jitterMicros = 2500;
+        /** Fraction of notifications lost, 0 to 1. */
+        public double lossRate;
+        /** Sensor samples per second of every channel. */
+        public int sampleRateHz = 100;
+        /** Whether the board offers packed sensor frames. */
+        public boolean frames = true;
+        public int maxMtu = 247;
+        /** Mean time between double taps, or 0 for none. */
+        public long doubleTapPeriodMillis;
+        public long connectDelayMillis = 50;
+        public long discoveryDelayMillis = 300;
+        /** Whether the board keeps its CCCDs across links. */
+        public boolean bonded;
+        public int waveform = WAVEFORM_SINE;
+        /** Seeds jitter, loss and taps; mixed with the address, so devices differ. */
+        public long seed = 1;
+
+        Config copy() {
+            Config copy = new Config();
+            copy.latencyMicros = latencyMicros;
+            copy.jitterMicros = jitterMicros;
+            copy.lossRate = lossRate;
+            copy.sampleRateHz = sampleRateHz;
+            copy.frames = frames;
+            copy.maxMtu = maxMtu;
+            copy.doubleTapPeriodMillis = doubleTapPeriodMillis;
+            copy.connectDelayMillis = connectDelayMillis;
+            copy.discoveryDelayMillis = discoveryDelayMillis;
+            copy.bonded = bonded;
+            copy.waveform = waveform;
+            copy.seed = seed;
+            return copy;
+        }
+    }
+
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_LENGTH = 3;
+    // Power of two; samples older than this are forgotten by getSampleNanos().
+    private static final int SAMPLE_HISTORY = 4096;
+    private static final byte[] DOUBLE_TAP_VALUE = {1};
+
+    private static final int[] PROPERTIES = new int[GattHandles.HANDLE_COUNT];
+
+    static {
+        PROPERTIES[GattHandles.HANDLE_ROLL] = PROPERTY_READ | PROPERTY_NOTIFY;
+        PROPERTIES[GattHandles.HANDLE_PITCH] = PROPERTY_READ | PROPERTY_NOTIFY;
+        PROPERTIES[GattHandles.HANDLE_TEMP] = PROPERTY_READ | PROPERTY_NOTIFY;
+        PROPERTIES[GattHandles.HANDLE_MOTOR] = PROPERTY_WRITE | PROPERTY_WRITE_NO_RESPONSE;
+        PROPERTIES[GattHandles.HANDLE_DOUBLE_TAP] = PROPERTY_NOTIFY;
+        PROPERTIES[GattHandles.HANDLE_FRAME] = PROPERTY_NOTIFY;
+        PROPERTIES[GattHandles.HANDLE_SERVICE_CHANGED] = PROPERTY_INDICATE;
+    }
+
+    private final String mAddress;
+    private final Callback mCallback;
+    private final Config mConfig;
+    private final ScheduledExecutorService mExecutor;
+    private final long mSampleIntervalNanos;
+
+    // All guarded by this.  Callbacks are always made without holding the lock: they call
+    // back into GattConnection, which may be calling into us with its own locks held.
+    private final Random mRandom;
+    // Bumped by open() and close(); events of an older generation are dropped.
+    private int mGeneration;
+    private boolean mOpen;
+    private boolean mConnected;
+    private boolean mDiscovered;
+    private int mMtu = DEFAULT_MTU;
+    // CCCD state on the board.  A bonded board keeps it across links, like a real one.
+    private final boolean[] mCccds = new boolean[GattHandles.HANDLE_COUNT];
+    // Handles whose notifications the client passes on.  Like a BluetoothGatt's, these
+    // registrations are lost with the client on open() and close().
+    private final boolean[] mRegistered = new boolean[GattHandles.HANDLE_COUNT];
+    private ScheduledFuture<?> mSampleTask;
+    private ScheduledFuture<?> mTapTask;
+    private long mLastDeliveryNanos;
+    private long mSampleIndex;
+    private final long[] mSampleNanos = new long[SAMPLE_HISTORY];
+    // Frame being filled; sent once it holds as many samples as the MTU allows.
+    private byte[] mFrame;
+    private int mFrameSamples;
+    private int mFrameSequence;
+    private int mLastCommand;
+
+    private volatile long mNotificationsSent;
+    private volatile long mNotificationsLost;
+    private volatile long mWrites;
+
+    SimulatedPeripheral(String address, Callback callback, Config config,
+                        ScheduledExecutorService executor) {
+        if (config.sampleRateHz <= 0) {
+            throw new IllegalArgumentException("Bad sample rate " + config.sampleRateHz);
+        }
+        mAddress = address;
+        mCallback = callback;
+        mConfig = config.copy();
+        mExecutor = executor;
+        mSampleIntervalNanos = 1000000000L / mConfig.sampleRateHz;
+        mRandom = new Random(mConfig.seed ^ address.hashCode());
+    }
+
+    /**
+     * Returns a factory of peripherals that share {@code executor}; with a single thread, that
+     * delivers every device's callbacks on one thread like the Bluetooth stack does.
+     */
+    static GattTransport.Factory factory(final Config config,
+                                         final ScheduledExecutorService executor) {
+        return new GattTransport.Factory() {
+            @Override
+            public GattTransport create(String address, Callback callback) {
+                return new SimulatedPeripheral(address, callback, config, executor);
+            }
+        };
+    }
+
+    /** A single daemon thread to run simulated peripherals on. */
+    static ScheduledExecutorService newExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SimulatedPeripheral");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public synchronized boolean open(boolean background) {
+        closeLocked();
+        mOpen = true;
+        scheduleConnectLocked();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public synchronized boolean reconnect() {
+        if (!mOpen) {
+            return false;
+        }
+        if (!mConnected) {
+            scheduleConnectLocked();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (!mConnected) {
+            return;
+        }
+        post(roundTripNanosLocked(), new Event() {
+            @Override
+            boolean applyLocked() {
+                return linkDownLocked();
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onConnectionStateChange(GATT_SUCCESS, STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        closeLocked();
+    }
+
+    /** Drops the link as if the board went out of range. */
+    synchronized void dropLink() {
+        post(0, new Event() {
+            @Override
+            boolean applyLocked() {
+                return linkDownLocked();
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onConnectionStateChange(STATUS_CONNECTION_TIMEOUT, STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        if (!mConnected) {
+            return false;
+        }
+        post(TimeUnit.MILLISECONDS.toNanos(mConfig.discoveryDelayMillis), new Event() {
+            @Override
+            boolean applyLocked() {
+                mDiscovered = mConnected;
+                return mConnected;
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onServicesDiscovered(GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized int getProperties(int handle) {
+        if (!mDiscovered || (handle == GattHandles.HANDLE_FRAME && !mConfig.frames)) {
+            return 0;
+        }
+        return PROPERTIES[handle];
+    }
+
+    @Override
+    public boolean hasCccd(int handle) {
+        return (getProperties(handle) & (PROPERTY_NOTIFY | PROPERTY_INDICATE)) != 0;
+    }
+
+    @Override
+    public long getDatabaseFingerprint() {
+        return mConfig.frames ? 0x5e57f4a3e5L : 0x5e57000000L;
+    }
+
+    @Override
+    public boolean isBonded() {
+        return mConfig.bonded;
+    }
+
+    @Override
+    public synchronized boolean read(final int handle) {
+        if ((getProperties(handle) & PROPERTY_READ) == 0) {
+            return false;
+        }
+        final byte[] value = new byte[2];
+        putInt16(value, 0, valueOf(handle, mSampleIndex));
+        post(roundTripNanosLocked(), new Event() {
+            @Override
+            void deliver() {
+                mCallback.onCharacteristicRead(handle, GattHandles.CHARACTERISTIC_UUIDS[handle],
+                        value, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean write(final int handle, final byte[] value,
+                                      boolean withoutResponse) {
+        final int property = withoutResponse ? PROPERTY_WRITE_NO_RESPONSE : PROPERTY_WRITE;
+        if ((getProperties(handle) & property) == 0) {
+            return false;
+        }
+        // A write without response is reported as soon as it is buffered.
+        final long delay = withoutResponse ? 0 : roundTripNanosLocked();
+        post(delay, new Event() {
+            @Override
+            boolean applyLocked() {
+                mLastCommand = value.length >= 2 ? (value[0] & 0xff) << 8 | value[1] & 0xff : 0;
+                mWrites++;
+                return true;
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onCharacteristicWrite(handle, GattHandles.CHARACTERISTIC_UUIDS[handle],
+                        value, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setNotifications(final int handle, final boolean enabled) {
+        if (!hasCccd(handle)) {
+            return false;
+        }
+        mRegistered[handle] = enabled;
+        post(roundTripNanosLocked(), new Event() {
+            @Override
+            boolean applyLocked() {
+                mCccds[handle] = enabled;
+                updateTasksLocked();
+                return true;
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onNotificationsSet(handle, GattHandles.CHARACTERISTIC_UUIDS[handle],
+                        enabled, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean registerNotifications(int handle, boolean enabled) {
+        if (!hasCccd(handle)) {
+            return false;
+        }
+        mRegistered[handle] = enabled;
+        return true;
+    }
+
+    @Override
+    public boolean isLinkTuningSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(int mtu) {
+        if (!mConnected) {
+            return false;
+        }
+        final int agreed = Math.max(DEFAULT_MTU, Math.min(mtu, mConfig.maxMtu));
+        post(roundTripNanosLocked(), new Event() {
+            @Override
+            boolean applyLocked() {
+                mMtu = agreed;
+                return true;
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onMtuChanged(agreed, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int linkProfile) {
+        return mConnected;
+    }
+
+    /** Last motor command written, as the big-endian uint16 the board receives. */
+    synchronized int getLastCommand() {
+        return mLastCommand;
+    }
+
+    long getWriteCount() {
+        return mWrites;
+    }
+
+    long getNotificationCount() {
+        return mNotificationsSent;
+    }
+
+    /** Notifications the link lost on purpose. */
+    long getLostNotificationCount() {
+        return mNotificationsLost;
+    }
+
+    /**
+     * With {@link #WAVEFORM_COUNTER}: the {@link System#nanoTime()} at which the sample whose
+     * values are {@code counter} was taken, or 0 if it is too old or wasn't taken.
+     */
+    synchronized long getSampleNanos(short counter) {
+        final long index = mSampleIndex - 1 - (short) (mSampleIndex - 1 - counter);
+        if (index < 0 || index >= mSampleIndex || mSampleIndex - index > SAMPLE_HISTORY) {
+            return 0;
+        }
+        return mSampleNanos[(int) index & (SAMPLE_HISTORY - 1)];
+    }
+
+    // Something the peripheral does at a given time.  applyLocked() changes the peripheral's
+    // state and may veto the event; deliver() then reports it, outside the lock.
+    private abstract class Event implements Runnable {
+        private int mEventGeneration;
+
+        boolean applyLocked() {
+            return true;
+        }
+
+        abstract void deliver();
+
+        @Override
+        public final void run() {
+            synchronized (SimulatedPeripheral.this) {
+                if (mEventGeneration != mGeneration || !applyLocked()) {
+                    return;
+                }
+            }
+            deliver();
+        }
+    }
+
+    private void post(long delayNanos, Event event) {
+        event.mEventGeneration = mGeneration;
+        mExecutor.schedule(event, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void scheduleConnectLocked() {
+        post(TimeUnit.MILLISECONDS.toNanos(mConfig.connectDelayMillis), new Event() {
+            @Override
+            boolean applyLocked() {
+                if (mConnected) {
+                    return false;
+                }
+                mConnected = true;
+                updateTasksLocked();
+                return true;
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onConnectionStateChange(GATT_SUCCESS, STATE_CONNECTED);
+            }
+        });
+    }
+
+    private void closeLocked() {
+        mGeneration++;
+        mOpen = false;
+        for (int handle = 0; handle < mRegistered.length; handle++) {
+            mRegistered[handle] = false;
+        }
+        linkDownLocked();
+    }
+
+    // Forgets the link; returns false if it was already down.
+    private boolean linkDownLocked() {
+        final boolean wasConnected = mConnected;
+        mConnected = false;
+        mDiscovered = false;
+        mMtu = DEFAULT_MTU;
+        // A partly filled frame is lost with the link.
+        mFrame = null;
+        if (!mConfig.bonded) {
+            for (int handle = 0; handle < mCccds.length; handle++) {
+                mCccds[handle] = false;
+            }
+        }
+        updateTasksLocked();
+        return wasConnected;
+    }
+
+    // Runs the sample clock while connected with any sensor notification on, and taps while
+    // tap notifications are on.
+    private void updateTasksLocked() {
+        final boolean sampling = mConnected && (mCccds[GattHandles.HANDLE_ROLL]
+                || mCccds[GattHandles.HANDLE_PITCH] || mCccds[GattHandles.HANDLE_TEMP]
+                || mCccds[GattHandles.HANDLE_FRAME]);
+        if (sampling && mSampleTask == null) {
+            mSampleTask = mExecutor.scheduleAtFixedRate(mSampleTick, mSampleIntervalNanos,
+                    mSampleIntervalNanos, TimeUnit.NANOSECONDS);
+        } else if (!sampling && mSampleTask != null) {
+            mSampleTask.cancel(false);
+            mSampleTask = null;
+        }
+        if (!mCccds[GattHandles.HANDLE_FRAME]) {
+            mFrame = null;
+        }
+        final boolean tapping = mConnected && mCccds[GattHandles.HANDLE_DOUBLE_TAP]
+                && mConfig.doubleTapPeriodMillis > 0;
+        if (tapping && mTapTask == null) {
+            scheduleTapLocked();
+        } else if (!tapping && mTapTask != null) {
+            mTapTask.cancel(false);
+            mTapTask = null;
+        }
+    }
+
+    private void scheduleTapLocked() {
+        // Exponentially distributed gaps, i.e. taps at random.
+        final long delay = (long) (-Math.log(1 - mRandom.nextDouble())
+                * TimeUnit.MILLISECONDS.toNanos(mConfig.doubleTapPeriodMillis));
+        mTapTask = mExecutor.schedule(mTapTick, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mTapTick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SimulatedPeripheral.this) {
+                if (mTapTask == null) {
+                    return;
+                }
+                notifyLocked(GattHandles.HANDLE_DOUBLE_TAP, DOUBLE_TAP_VALUE,
+                        oneWayNanosLocked());
+                scheduleTapLocked();
+            }
+        }
+    };
+
+    private final Runnable mSampleTick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SimulatedPeripheral.this) {
+                if (mSampleTask != null) {
+                    sampleLocked();
+                }
+            }
+        }
+    };
+
+    // Takes one sample of every channel and sends it to every subscribed characteristic.
+    private void sampleLocked() {
+        final long now = System.nanoTime();
+        final long index = mSampleIndex++;
+        mSampleNanos[(int) index & (SAMPLE_HISTORY - 1)] = now;
+        final long delay = oneWayNanosLocked();
+        for (int channel = 0; channel < SensorSample.CHANNEL_COUNT; channel++) {
+            if (mCccds[channel]) {
+                final byte[] value = new byte[2];
+                putInt16(value, 0, valueOf(channel, index));
+                notifyLocked(channel, value, delay);
+            }
+        }
+        if (!mCccds[GattHandles.HANDLE_FRAME]) {
+            return;
+        }
+        if (mFrame == null) {
+            final int payload = mMtu - ATT_HEADER_LENGTH - PackedFrameDecoder.HEADER_LENGTH;
+            final int samples = Math.max(1, payload / PackedFrameDecoder.SAMPLE_LENGTH);
+            mFrame = new byte[PackedFrameDecoder.HEADER_LENGTH
+                    + samples * PackedFrameDecoder.SAMPLE_LENGTH];
+            putInt16(mFrame, 0, mFrameSequence++);
+            final long boardMicros = now / 1000;
+            putInt16(mFrame, 2, (int) boardMicros);
+            putInt16(mFrame, 4, (int) (boardMicros >>> 16));
+            putInt16(mFrame, 6, (int) (mSampleIntervalNanos / 1000));
+            mFrameSamples = 0;
+        }
+        int offset = PackedFrameDecoder.HEADER_LENGTH
+                + mFrameSamples * PackedFrameDecoder.SAMPLE_LENGTH;
+        for (int channel = 0; channel < SensorSample.CHANNEL_COUNT; channel++) {
+            putInt16(mFrame, offset, valueOf(channel, index));
+            offset += 2;
+        }
+        if (++mFrameSamples * PackedFrameDecoder.SAMPLE_LENGTH
+                + PackedFrameDecoder.HEADER_LENGTH == mFrame.length) {
+            notifyLocked(GattHandles.HANDLE_FRAME, mFrame, delay);
+            mFrame = null;
+        }
+    }
+
+    // Sends a notification unless the link loses it, keeping notifications in order.
+    private void notifyLocked(final int handle, final byte[] value, long delayNanos) {
+        if (mConfig.lossRate > 0 && mRandom.nextDouble() < mConfig.lossRate) {
+            mNotificationsLost++;
+            return;
+        }
+        mNotificationsSent++;
+        final long now = System.nanoTime();
+        mLastDeliveryNanos = Math.max(mLastDeliveryNanos, now + delayNanos);
+        post(mLastDeliveryNanos - now, new Event() {
+            @Override
+            boolean applyLocked() {
+                // Without a registration the client's stack drops it.
+                return mConnected && mCccds[handle] && mRegistered[handle];
+            }
+
+            @Override
+            void deliver() {
+                mCallback.onCharacteristicChanged(handle,
+                        GattHandles.CHARACTERISTIC_UUIDS[handle], value);
+            }
+        });
+    }
+
+    // Value of a channel at a sample, in hundredths.
+    private int valueOf(int channel, long index) {
+        if (mConfig.waveform == WAVEFORM_COUNTER) {
+            return (int) index;
+        }
+        final double seconds = (double) index / mConfig.sampleRateHz;
+        switch (channel) {
+            case SensorSample.CHANNEL_ROLL:
+                return (int) (4500 * Math.sin(2 * Math.PI * seconds / 4));
+            case SensorSample.CHANNEL_PITCH:
+                return (int) (3000 * Math.cos(2 * Math.PI * seconds / 6));
+            default:
+                return 2350 + (int) (50 * Math.sin(2 * Math.PI * seconds / 60));
+        }
+    }
+
+    private long oneWayNanosLocked() {
+        long micros = mConfig.latencyMicros;
+        if (mConfig.jitterMicros > 0) {
+            micros += (long) (mRandom.nextDouble() * mConfig.jitterMicros);
+        }
+        return micros * 1000;
+    }
+
+    private long roundTripNanosLocked() {
+        return oneWayNanosLocked() + oneWayNanosLocked();
+    }
+
+    private static void putInt16(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+    }
+}
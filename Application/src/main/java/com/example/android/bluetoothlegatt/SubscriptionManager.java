@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Desired versus confirmed notification state of each handle of one connection.  A CCCD write
+ * is only issued when the two differ and no write for that handle is already in flight, so
+ * asking for the same state again costs nothing.  State is confirmed from the descriptor write
+ * completion; after a reconnect everything is unconfirmed again and {@link #applyAll()}
+ * re-subscribes.
+ *
+ * <p>Writes are decided with the manager locked and issued through the {@link Sink} after
+ * unlocking, so the sink may take other locks, such as the operation queue's.
+ */
+class SubscriptionManager {
+    static final int STATE_UNKNOWN = 0;
+    static final int STATE_DISABLED = 1;
+    static final int STATE_ENABLED = 2;
+
+    // Failed CCCD writes retried per handle before giving up until the next request or link.
+    private static final int MAX_RETRIES = 2;
+
+    /** Issues the CCCD write; its completion comes back through {@link #onWriteFinished}. */
+    interface Sink {
+        /** @return false if the write could not be issued. */
+        boolean writeCccd(int handle, boolean enabled);
+    }
+
+    private final Sink mSink;
+    // STATE_UNKNOWN in mDesired means the app never asked, so the handle is left alone.
+    private final int[] mDesired;
+    private final int[] mConfirmed;
+    private final boolean[] mInFlight;
+    private final int[] mRetries;
+    private boolean mLinkReady;
+    // Bumped by reset(), so a write that couldn't be issued doesn't touch state of a newer link.
+    private int mEpoch;
+
+    private long mWrites;
+    private long mSkipped;
+
+    SubscriptionManager(int handleCount, Sink sink) {
+        mSink = sink;
+        mDesired = new int[handleCount];
+        mConfirmed = new int[handleCount];
+        mInFlight = new boolean[handleCount];
+        mRetries = new int[handleCount];
+    }
+
+    /**
+     * Records the wanted state of a handle and writes its CCCD if that changes anything.  While
+     * the link isn't ready the request is only recorded.
+     */
+    void setEnabled(int handle, boolean enabled) {
+        final int state = enabled ? STATE_ENABLED : STATE_DISABLED;
+        final int write;
+        final int epoch;
+        synchronized (this) {
+            if (mDesired[handle] == state && (mInFlight[handle] || mConfirmed[handle] == state)) {
+                mSkipped++;
+                return;
+            }
+            mDesired[handle] = state;
+            mRetries[handle] = 0;
+            write = claimWriteLocked(handle);
+            epoch = mEpoch;
+        }
+        issueWrite(handle, write, epoch);
+    }
+
+    /** Marks the link usable, e.g. after service discovery, and applies every request. */
+    void applyAll() {
+        final int[] writes = new int[mDesired.length];
+        final int epoch;
+        synchronized (this) {
+            mLinkReady = true;
+            for (int handle = 0; handle < mDesired.length; handle++) {
+                mRetries[handle] = 0;
+                writes[handle] = claimWriteLocked(handle);
+            }
+            epoch = mEpoch;
+        }
+        for (int handle = 0; handle < writes.length; handle++) {
+            issueWrite(handle, writes[handle], epoch);
+        }
+    }
+
+    /** Forgets the confirmed state, e.g. on disconnect; the wanted state is kept. */
+    synchronized void reset() {
+        mEpoch++;
+        mLinkReady = false;
+        for (int handle = 0; handle < mDesired.length; handle++) {
+            mConfirmed[handle] = STATE_UNKNOWN;
+            mInFlight[handle] = false;
+        }
+    }
+
+    /** Called when the CCCD write of {@code handle} has finished. */
+    void onWriteFinished(int handle, boolean enabled, boolean success) {
+        final int write;
+        final int epoch;
+        synchronized (this) {
+            if (!mInFlight[handle]) {
+                // Left over from before a reset.
+                return;
+            }
+            mInFlight[handle] = false;
+            if (success) {
+                mConfirmed[handle] = enabled ? STATE_ENABLED : STATE_DISABLED;
+            } else {
+                mConfirmed[handle] = STATE_UNKNOWN;
+                if (mRetries[handle]++ >= MAX_RETRIES) {
+                    return;
+                }
+            }
+            // The wanted state may have changed while the write was in flight.
+            write = claimWriteLocked(handle);
+            epoch = mEpoch;
+        }
+        issueWrite(handle, write, epoch);
+    }
+
+    /**
+     * Takes handles as already enabled, e.g. CCCDs a bonded device kept from an earlier
+     * connection that the client has registered for again.  Call before {@link #applyAll()}.
+     */
+    synchronized void assumeEnabled(int handleMask) {
+        for (int handle = 0; handle < mConfirmed.length; handle++) {
+            if ((handleMask & (1 << handle)) != 0) {
+                mConfirmed[handle] = STATE_ENABLED;
+            }
+        }
+    }
+
+    /** Returns a bit per handle whose notifications are confirmed enabled. */
+    synchronized int getEnabledMask() {
+        int mask = 0;
+        for (int handle = 0; handle < mConfirmed.length; handle++) {
+            if (mConfirmed[handle] == STATE_ENABLED) {
+                mask |= 1 << handle;
+            }
+        }
+        return mask;
+    }
+
+    synchronized boolean isEnabled(int handle) {
+        return mConfirmed[handle] == STATE_ENABLED;
+    }
+
+    /** CCCD writes issued, and requests that needed none. */
+    synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    synchronized long getSkippedCount() {
+        return mSkipped;
+    }
+
+    // Marks a write in flight if the handle needs one; returns the state to write, or
+    // STATE_UNKNOWN for none.  The caller issues it with issueWrite() after unlocking.
+    private int claimWriteLocked(int handle) {
+        final int desired = mDesired[handle];
+        if (!mLinkReady || mInFlight[handle] || desired == STATE_UNKNOWN
+                || desired == mConfirmed[handle]) {
+            return STATE_UNKNOWN;
+        }
+        mInFlight[handle] = true;
+        return desired;
+    }
+
+    // Called without the lock held.
+    private void issueWrite(int handle, int state, int epoch) {
+        if (state == STATE_UNKNOWN) {
+            return;
+        }
+        final boolean issued = mSink.writeCccd(handle, state == STATE_ENABLED);
+        synchronized (this) {
+            if (issued) {
+                mWrites++;
+            } else if (epoch == mEpoch) {
+                mInFlight[handle] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.UUID;
+
+/**
+ * Names of known services and characteristics, keyed by the two 64-bit halves of their UUID
+ * in an open-addressing table, with a separate smaller table for 16-bit UUIDs under the
+ * Bluetooth Base UUID.  Lookups don't allocate, so they can be made from GATT callbacks.
+ *
+ * <p>Entries are added at startup: in code with {@link #put}, or from a profile file with
+ * {@link #load}.  Adding entries is synchronized but lookups are not, so finish registering
+ * before looking attributes up from other threads.
+ */
+public final class UuidRegistry {
+    // Bluetooth Base UUID, 00000000-0000-1000-8000-00805f9b34fb.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // 128-bit table; a null name marks an empty slot.
+    private long[] mMsb = new long[INITIAL_CAPACITY];
+    private long[] mLsb = new long[INITIAL_CAPACITY];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private int mSize;
+
+    // 16-bit table.
+    private int[] mSigKeys = new int[INITIAL_CAPACITY];
+    private String[] mSigNames = new String[INITIAL_CAPACITY];
+    private int mSigSize;
+
+    /** Whether a UUID is a 16-bit SIG UUID expanded with the Bluetooth Base UUID. */
+    public static boolean isSig16(long msb, long lsb) {
+        return lsb == BASE_UUID_LSB && (msb & 0xffffffffL) == BASE_UUID_MSB
+                && (msb >>> 32) <= 0xffff;
+    }
+
+    public synchronized void put(UUID uuid, String name) {
+        put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), name);
+    }
+
+    /** Registers {@code name} for a UUID string; see {@link #load} for the accepted forms. */
+    public synchronized void put(String uuid, String name) {
+        put(parse(uuid), name);
+    }
+
+    public synchronized void put(long msb, long lsb, String name) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        if (isSig16(msb, lsb)) {
+            putSig16((int) (msb >>> 32), name);
+            return;
+        }
+        if ((mSize + 1) * 2 > mNames.length) {
+            resize(mNames.length * 2);
+        }
+        int slot = slotOf(msb, lsb, mNames.length - 1);
+        while (mNames[slot] != null) {
+            if (mMsb[slot] == msb && mLsb[slot] == lsb) {
+                mNames[slot] = name;
+                return;
+            }
+            slot = (slot + 1) & (mNames.length - 1);
+        }
+        mMsb[slot] = msb;
+        mLsb[slot] = lsb;
+        mNames[slot] = name;
+        mSize++;
+    }
+
+    /** Returns the name registered for a UUID, or null. */
+    public String lookup(long msb, long lsb) {
+        if (isSig16(msb, lsb)) {
+            return lookupSig16((int) (msb >>> 32));
+        }
+        final String[] names = mNames;
+        final long[] msbs = mMsb;
+        final long[] lsbs = mLsb;
+        final int mask = names.length - 1;
+        int slot = slotOf(msb, lsb, mask);
+        String name;
+        while ((name = names[slot]) != null) {
+            if (msbs[slot] == msb && lsbs[slot] == lsb) {
+                return name;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public String lookup(UUID uuid) {
+        return lookup(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public String lookup(UUID uuid, String defaultName) {
+        final String name = lookup(uuid);
+        return name == null ? defaultName : name;
+    }
+
+    /** Returns the name registered for a 16-bit SIG UUID such as 0x2a37, or null. */
+    public String lookupSig16(int uuid16) {
+        final int[] keys = mSigKeys;
+        final String[] names = mSigNames;
+        final int mask = keys.length - 1;
+        int slot = slotOf(uuid16, mask);
+        String name;
+        while ((name = names[slot]) != null) {
+            if (keys[slot] == uuid16) {
+                return name;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return mSize + mSigSize;
+    }
+
+    /**
+     * Adds the entries of a profile file: one attribute per line, a UUID followed by
+     * whitespace and its name.  UUIDs are either full 128-bit strings or 16-bit SIG UUIDs in
+     * hex, e.g. {@code 2a37}.  Blank lines and lines starting with {@code #} are skipped.
+     *
+     * @return the number of entries read.
+     * @throws IOException if the stream can't be read or a line is malformed.
+     */
+    public int load(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        int count = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            int split = 0;
+            while (split < line.length() && !Character.isWhitespace(line.charAt(split))) {
+                split++;
+            }
+            final String name = line.substring(split).trim();
+            if (name.length() == 0) {
+                throw new IOException("Line " + lineNumber + ": missing name");
+            }
+            try {
+                put(line.substring(0, split), name);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static UUID parse(String uuid) {
+        if (uuid.length() <= 4) {
+            return new UUID(BASE_UUID_MSB | (long) Integer.parseInt(uuid, 16) << 32,
+                    BASE_UUID_LSB);
+        }
+        return UUID.fromString(uuid);
+    }
+
+    private void putSig16(int key, String name) {
+        if ((mSigSize + 1) * 2 > mSigNames.length) {
+            final int[] oldKeys = mSigKeys;
+            final String[] oldNames = mSigNames;
+            mSigKeys = new int[oldKeys.length * 2];
+            mSigNames = new String[oldNames.length * 2];
+            mSigSize = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldNames[i] != null) {
+                    putSig16(oldKeys[i], oldNames[i]);
+                }
+            }
+        }
+        final int mask = mSigKeys.length - 1;
+        int slot = slotOf(key, mask);
+        while (mSigNames[slot] != null) {
+            if (mSigKeys[slot] == key) {
+                mSigNames[slot] = name;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mSigKeys[slot] = key;
+        mSigNames[slot] = name;
+        mSigSize++;
+    }
+
+    private void resize(int capacity) {
+        final long[] oldMsb = mMsb;
+        final long[] oldLsb = mLsb;
+        final String[] oldNames = mNames;
+        final long[] msbs = new long[capacity];
+        final long[] lsbs = new long[capacity];
+        final String[] names = new String[capacity];
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) {
+                continue;
+            }
+            int slot = slotOf(oldMsb[i], oldLsb[i], capacity - 1);
+            while (names[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            msbs[slot] = oldMsb[i];
+            lsbs[slot] = oldLsb[i];
+            names[slot] = oldNames[i];
+        }
+        mMsb = msbs;
+        mLsb = lsbs;
+        mNames = names;
+    }
+
+    // Also used by CodecTable, so both tables spread UUIDs the same way.
+    static int slotOf(long msb, long lsb, int mask) {
+        long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int slotOf(int key, int mask) {
+        final int h = key * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Latest-value-wins sender for a command characteristic.  At most one write is in flight; while
+ * it is, newer values overwrite each other and only the last one is sent when the write
+ * finishes.  A value equal to the last one sent is not sent again.
+ *
+ * <p>Values are packed into a non-negative int by the caller.
+ */
+class WriteCoalescer {
+    private static final int NONE = -1;
+
+    /** Issues the actual write. */
+    interface Sink {
+        /**
+         * @return false if the write could not be issued; it will be retried with the next
+         *         submitted value or {@link #flush()}.
+         */
+        boolean write(int value);
+    }
+
+    private final Sink mSink;
+    private int mLatest = NONE;
+    private int mSent = NONE;
+    private boolean mInFlight;
+    private boolean mPumping;
+
+    private long mSubmitted;
+    private long mIssued;
+
+    WriteCoalescer(Sink sink) {
+        mSink = sink;
+    }
+
+    /** Makes {@code value} the value to send, sending it now if the link is free. */
+    synchronized void submit(int value) {
+        mSubmitted++;
+        mLatest = value;
+        pumpLocked();
+    }
+
+    /** Called when the write in flight has finished, successfully or not. */
+    synchronized void onWriteFinished(boolean success) {
+        mInFlight = false;
+        if (!success) {
+            // The peripheral may not have the value; send the latest one again.
+            mSent = NONE;
+        }
+        pumpLocked();
+    }
+
+    /** Sends the latest value if it hasn't been sent yet, e.g. once the link is back. */
+    synchronized void flush() {
+        pumpLocked();
+    }
+
+    /**
+     * Forgets what the peripheral has, e.g. after a disconnect.  The latest value is kept and
+     * goes out on the next {@link #flush()}.
+     */
+    synchronized void reset() {
+        mInFlight = false;
+        mSent = NONE;
+    }
+
+    synchronized long getSubmittedCount() {
+        return mSubmitted;
+    }
+
+    synchronized long getIssuedCount() {
+        return mIssued;
+    }
+
+    private void pumpLocked() {
+        // A write refused synchronously reports its failure from inside the sink; don't retry
+        // it from there, or a link that keeps refusing would recurse.
+        if (mPumping || mInFlight || mLatest == NONE || mLatest == mSent) {
+            return;
+        }
+        final int value = mLatest;
+        final int previous = mSent;
+        // Update state first: the sink may report completion before it returns.
+        mInFlight = true;
+        mSent = value;
+        mPumping = true;
+        try {
+            if (mSink.write(value)) {
+                // Unless the write was already refused from inside the sink.
+                if (mInFlight) {
+                    mIssued++;
+                }
+            } else {
+                mInFlight = false;
+                mSent = previous;
+            }
+        } finally {
+            mPumping = false;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the {@link DataPathBenchmarks} on a plain JVM.  Every case does a fixed number of
+ * operations per round on inputs generated from fixed seeds.  Each case runs in freshly
+ * forked JVMs, so the JIT doesn't carry profiles from one case into the next; after warmup
+ * rounds the median time of the measured rounds of all forks is reported, along with the
+ * bytes allocated per operation.  Results can be saved and later compared against, which
+ * fails the run when a case got slower than the tolerance or started allocating.
+ *
+ * <pre>
+ * java BenchmarkRunner [--filter text] [--forks n] [--rounds n] [--warmup n]
+ *                      [--save file] [--baseline file] [--tolerance fraction]
+ * </pre>
+ */
+public final class BenchmarkRunner {
+    private static final int DEFAULT_FORKS = 3;
+    private static final int DEFAULT_ROUNDS = 15;
+    private static final int DEFAULT_WARMUP = 5;
+    private static final double DEFAULT_TOLERANCE = 0.25;
+
+    // Below this a case counts as not allocating; the JVM's counters aren't byte exact.
+    private static final double ALLOCATION_THRESHOLD = 1.0;
+
+    // Prefix of the result line a forked JVM prints for its parent.
+    private static final String RESULT_PREFIX = "RESULT\t";
+
+    /** One measured operation; {@link #run} must not be optimized away, so it returns a value. */
+    abstract static class Case {
+        final String mName;
+        final int mOpsPerRound;
+
+        Case(String name, int opsPerRound) {
+            mName = name;
+            mOpsPerRound = opsPerRound;
+        }
+
+        /** Prepares the inputs.  Called once, before warmup. */
+        void setUp() {
+        }
+
+        /** Runs {@code ops} operations and returns something derived from all of them. */
+        abstract long run(int ops);
+    }
+
+    static final class Result {
+        final String name;
+        final double medianNanos;
+        final double minNanos;
+        final double maxNanos;
+        // -1 if the JVM can't count allocations.
+        final double bytesPerOp;
+
+        Result(String name, double medianNanos, double minNanos, double maxNanos,
+               double bytesPerOp) {
+            this.name = name;
+            this.medianNanos = medianNanos;
+            this.minNanos = minNanos;
+            this.maxNanos = maxNanos;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    // Keeps results of run() observable so the JIT can't drop the work.
+    static volatile long sSink;
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        String filter = null;
+        String child = null;
+        String save = null;
+        String baseline = null;
+        int forks = DEFAULT_FORKS;
+        int rounds = DEFAULT_ROUNDS;
+        int warmup = DEFAULT_WARMUP;
+        double tolerance = DEFAULT_TOLERANCE;
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            final String value = args[++i];
+            if ("--filter".equals(arg)) {
+                filter = value;
+            } else if ("--child".equals(arg)) {
+                child = value;
+            } else if ("--forks".equals(arg)) {
+                forks = Integer.parseInt(value);
+            } else if ("--rounds".equals(arg)) {
+                rounds = Integer.parseInt(value);
+            } else if ("--warmup".equals(arg)) {
+                warmup = Integer.parseInt(value);
+            } else if ("--save".equals(arg)) {
+                save = value;
+            } else if ("--baseline".equals(arg)) {
+                baseline = value;
+            } else if ("--tolerance".equals(arg)) {
+                tolerance = Double.parseDouble(value);
+            } else {
+                usage("Unknown option " + arg);
+            }
+        }
+        if (rounds < 1 || warmup < 0 || forks < 0) {
+            usage("Need at least one round");
+        }
+        if (child != null) {
+            runChild(child, warmup, rounds);
+            return;
+        }
+
+        final PrintStream out = System.out;
+        out.println(String.format(Locale.US, "%-28s %12s %12s %12s %10s",
+                "benchmark", "median ns/op", "min ns/op", "max ns/op", "B/op"));
+        final List<Result> results = new ArrayList<Result>();
+        for (Case c : DataPathBenchmarks.all()) {
+            if (filter != null && !c.mName.contains(filter)) {
+                continue;
+            }
+            final Result result = forks == 0 ? measure(c, warmup, rounds)
+                    : fork(c.mName, forks, warmup, rounds);
+            results.add(result);
+            out.println(String.format(Locale.US, "%-28s %12.1f %12.1f %12.1f %10s",
+                    result.name, result.medianNanos, result.minNanos, result.maxNanos,
+                    result.bytesPerOp < 0 ? "n/a"
+                            : String.format(Locale.US, "%.1f", result.bytesPerOp)));
+        }
+
+        if (save != null) {
+            save(results, save);
+        }
+        if (baseline != null && !compare(results, load(baseline), tolerance, out)) {
+            System.exit(1);
+        }
+    }
+
+    static Result measure(Case c, int warmup, int rounds) {
+        final double[] nanosPerOp = new double[rounds];
+        final double bytesPerOp = measureRounds(c, warmup, nanosPerOp);
+        Arrays.sort(nanosPerOp);
+        return new Result(c.mName, median(nanosPerOp), nanosPerOp[0], nanosPerOp[rounds - 1],
+                bytesPerOp);
+    }
+
+    // Fills in the time per operation of every measured round and returns bytes per operation.
+    private static double measureRounds(Case c, int warmup, double[] nanosPerOp) {
+        c.setUp();
+        for (int i = 0; i < warmup; i++) {
+            sSink += c.run(c.mOpsPerRound);
+        }
+        final long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < nanosPerOp.length; i++) {
+            final long start = System.nanoTime();
+            sSink += c.run(c.mOpsPerRound);
+            nanosPerOp[i] = (double) (System.nanoTime() - start) / c.mOpsPerRound;
+        }
+        final long allocatedAfter = allocatedBytes();
+        return allocatedBefore < 0 ? -1 : (double) (allocatedAfter - allocatedBefore)
+                / ((long) nanosPerOp.length * c.mOpsPerRound);
+    }
+
+    // Runs one case in this JVM and prints every round for the parent.
+    private static void runChild(String name, int warmup, int rounds) {
+        for (Case c : DataPathBenchmarks.all()) {
+            if (c.mName.equals(name)) {
+                final double[] nanosPerOp = new double[rounds];
+                final double bytesPerOp = measureRounds(c, warmup, nanosPerOp);
+                final StringBuilder line = new StringBuilder(RESULT_PREFIX);
+                line.append(bytesPerOp);
+                for (double nanos : nanosPerOp) {
+                    line.append('\t').append(nanos);
+                }
+                System.out.println(line);
+                return;
+            }
+        }
+        usage("Unknown benchmark " + name);
+    }
+
+    // Runs a case in {@code forks} fresh JVMs with this JVM's class path and options.
+    private static Result fork(String name, int forks, int warmup, int rounds)
+            throws IOException {
+        final List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BenchmarkRunner.class.getName());
+        command.add("--child");
+        command.add(name);
+        command.add("--warmup");
+        command.add(Integer.toString(warmup));
+        command.add("--rounds");
+        command.add(Integer.toString(rounds));
+
+        final double[] nanosPerOp = new double[forks * rounds];
+        double bytesPerOp = 0;
+        for (int f = 0; f < forks; f++) {
+            final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String result = null;
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(RESULT_PREFIX)) {
+                        result = line;
+                    } else {
+                        System.err.println(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for " + name);
+            }
+            if (result == null) {
+                throw new IOException(name + " failed in fork " + f);
+            }
+            final String[] fields = result.split("\t");
+            final double forkBytesPerOp = Double.parseDouble(fields[1]);
+            // Every fork reports -1 if the JVM can't count allocations.
+            bytesPerOp = f == 0 || forkBytesPerOp < 0 ? forkBytesPerOp
+                    : Math.max(bytesPerOp, forkBytesPerOp);
+            for (int i = 0; i < rounds; i++) {
+                nanosPerOp[f * rounds + i] = Double.parseDouble(fields[2 + i]);
+            }
+        }
+        Arrays.sort(nanosPerOp);
+        return new Result(name, median(nanosPerOp), nanosPerOp[0],
+                nanosPerOp[nanosPerOp.length - 1], bytesPerOp);
+    }
+
+    private static double median(double[] sorted) {
+        final int n = sorted.length;
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the JVM doesn't say.
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Checks results against a baseline.  A case regresses when its median is slower by more
+     * than {@code tolerance}, or when it allocates and the baseline didn't.
+     *
+     * @return false if anything regressed.
+     */
+    static boolean compare(List<Result> results, Map<String, Result> baseline,
+                           double tolerance, PrintStream out) {
+        boolean ok = true;
+        for (Result result : results) {
+            final Result before = baseline.get(result.name);
+            if (before == null) {
+                continue;
+            }
+            final double change = result.medianNanos / before.medianNanos - 1;
+            final boolean slower = change > tolerance;
+            final boolean allocates = before.bytesPerOp >= 0
+                    && before.bytesPerOp < ALLOCATION_THRESHOLD
+                    && result.bytesPerOp >= ALLOCATION_THRESHOLD;
+            if (slower || allocates) {
+                ok = false;
+                out.println(String.format(Locale.US, "REGRESSION %s: %.1f -> %.1f ns/op (%+.0f%%),"
+                        + " %.1f -> %.1f B/op", result.name, before.medianNanos,
+                        result.medianNanos, change * 100, before.bytesPerOp,
+                        result.bytesPerOp));
+            }
+        }
+        return ok;
+    }
+
+    private static void save(List<Result> results, String path) throws IOException {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+        try {
+            for (Result result : results) {
+                writer.write(String.format(Locale.US, "%s\t%.3f\t%.3f\n", result.name,
+                        result.medianNanos, result.bytesPerOp));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static Map<String, Result> load(String path) throws IOException {
+        final Map<String, Result> results = new HashMap<String, Result>();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    continue;
+                }
+                final double median = Double.parseDouble(fields[1]);
+                results.put(fields[0], new Result(fields[0], median, median, median,
+                        Double.parseDouble(fields[2])));
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: BenchmarkRunner [--filter text] [--rounds n] [--warmup n]"
+                + " [--save file] [--baseline file] [--tolerance fraction]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The per-sample hot spots of the data path, each next to the way the app did it before where
+ * that can run without Android.  Android-only work (Intents, broadcasts, views) is left out of
+ * both sides, so legacy numbers are a lower bound.
+ */
+final class DataPathBenchmarks {
+    private static final long SEED = 0x5eed;
+
+    private static final UUID UUID_ROLL = UUID.fromString(SampleGattAttributes.ROLL_MEASUREMENT);
+    private static final UUID UUID_PITCH =
+            UUID.fromString(SampleGattAttributes.PITCH_MEASUREMENT);
+    private static final UUID UUID_TEMP = UUID.fromString(SampleGattAttributes.TEMP_MEASUREMENT);
+    private static final UUID UUID_SAMPLE_CHARA =
+            UUID.fromString(SampleGattAttributes.SAMPLE_CHARA);
+    private static final UUID UUID_DOUBLE_TAP_CHARA =
+            UUID.fromString(SampleGattAttributes.DOUBLE_TAP_CHARA);
+    private static final UUID[] SENSOR_UUIDS = {UUID_ROLL, UUID_PITCH, UUID_TEMP};
+
+    // Power of two, so inputs can be indexed with a mask.
+    private static final int INPUTS = 1024;
+
+    private DataPathBenchmarks() {
+    }
+
+    static List<BenchmarkRunner.Case> all() {
+        final List<BenchmarkRunner.Case> cases = new ArrayList<BenchmarkRunner.Case>();
+        cases.add(new LegacyDecode());
+        cases.add(new CodecDecode());
+        cases.add(new FrameDecode());
+        cases.add(new LegacyFormat());
+        cases.add(new FormatterFormat());
+        cases.add(new Fanout(1));
+        cases.add(new Fanout(8));
+        cases.add(new QueueThroughput(1, false));
+        cases.add(new QueueThroughput(16, false));
+        cases.add(new QueueThroughput(16, true));
+        cases.add(new MetricsRecord());
+        cases.add(new LegacyScanDedup());
+        cases.add(new AggregatorScanDedup());
+        cases.add(new LegacyUuidLookup());
+        cases.add(new RegistryUuidLookup());
+        return cases;
+    }
+
+    // Sensor notifications: a characteristic and its int16 value, in random order.
+    private static void sensorValues(UUID[] uuids, byte[][] values) {
+        final Random random = new Random(SEED);
+        for (int i = 0; i < values.length; i++) {
+            uuids[i] = SENSOR_UUIDS[random.nextInt(SENSOR_UUIDS.length)];
+            final int value = random.nextInt(36000) - 18000;
+            values[i] = new byte[] {(byte) value, (byte) (value >> 8)};
+        }
+    }
+
+    /** {@code broadcastUpdate} as it was: an if per characteristic and String formatting. */
+    static final class LegacyDecode extends BenchmarkRunner.Case {
+        private final UUID[] mUuids = new UUID[INPUTS];
+        private final byte[][] mValues = new byte[INPUTS][];
+
+        LegacyDecode() {
+            super("decode.legacy", 100000);
+        }
+
+        @Override
+        void setUp() {
+            sensorValues(mUuids, mValues);
+        }
+
+        @Override
+        long run(int ops) {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                // Stands in for the extras of the Intent that was built for every value.
+                final Map<String, Object> extras = new HashMap<String, Object>();
+                broadcastUpdate(mUuids[i & (INPUTS - 1)], mValues[i & (INPUTS - 1)], extras);
+                result += extras.size();
+            }
+            return result;
+        }
+
+        private static void broadcastUpdate(UUID uuid, byte[] data, Map<String, Object> extras) {
+            if (UUID_SAMPLE_CHARA.equals(uuid)) {
+                extras.put("sent", data);
+            }
+            if (uuid.equals(UUID_DOUBLE_TAP_CHARA)) {
+                extras.put("tap", data);
+            }
+            if (UUID_TEMP.equals(uuid) && data != null && data.length > 0) {
+                final StringBuilder stringBuilder = new StringBuilder(data.length);
+                short value = (short) (data[1] << 8 | data[0] & 0xff);
+                stringBuilder.append(String.format("%d.%d " + "\u2103", value / 100, value % 100));
+                extras.put("temp", new String(data) + "\n" + stringBuilder.toString());
+            }
+            if (UUID_PITCH.equals(uuid) && data != null && data.length > 0) {
+                final StringBuilder stringBuilder = new StringBuilder(data.length);
+                short value = (short) (data[1] << 8 | data[0] & 0xff);
+                stringBuilder.append(String.format("%d.%d " + "\u00b0", value / 100, value % 100));
+                extras.put("pitch", new String(data) + "\n" + stringBuilder.toString());
+            }
+            if (UUID_ROLL.equals(uuid) && data != null && data.length > 0) {
+                final StringBuilder stringBuilder = new StringBuilder(data.length);
+                short value = (short) (data[1] << 8 | data[0] & 0xff);
+                stringBuilder.append(String.format("%d.%d " + "\u00b0", value / 100, value % 100));
+                extras.put("roll", new String(data) + "\n" + stringBuilder.toString());
+            }
+        }
+    }
+
+    /** What {@code GattConnection} does now: look up the codec and decode into a sample. */
+    static final class CodecDecode extends BenchmarkRunner.Case {
+        private final UUID[] mUuids = new UUID[INPUTS];
+        private final byte[][] mValues = new byte[INPUTS][];
+        private final CodecTable mCodecs = new CodecTable();
+        private final SensorSample mSample = new SensorSample();
+        private long mSum;
+        private final CharacteristicCodec.Sink mSink = new CharacteristicCodec.Sink() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mSum += sample.value;
+            }
+        };
+
+        CodecDecode() {
+            super("decode.codec", 2000000);
+        }
+
+        @Override
+        void setUp() {
+            sensorValues(mUuids, mValues);
+            BoardCodecs.install(mCodecs, new PackedFrameDecoder());
+        }
+
+        @Override
+        long run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                final int input = i & (INPUTS - 1);
+                mCodecs.get(mUuids[input]).decode(mValues[input], i, mSample, mSink);
+            }
+            return mSum;
+        }
+    }
+
+    /** One full-MTU packed frame per operation: 39 samples of each channel. */
+    static final class FrameDecode extends BenchmarkRunner.Case {
+        private static final int FRAMES = 64;
+        private static final int SAMPLES_PER_FRAME = 39;
+        private static final int INTERVAL_MICROS = 10000;
+
+        private final byte[][] mFrames = new byte[FRAMES][];
+        private final PackedFrameDecoder mDecoder = new PackedFrameDecoder();
+        private final SensorSample mSample = new SensorSample();
+        private long mSum;
+        private long mReceivedNanos;
+        private final CharacteristicCodec.Sink mSink = new CharacteristicCodec.Sink() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mSum += sample.value;
+            }
+        };
+
+        FrameDecode() {
+            super("decode.frame", 100000);
+        }
+
+        @Override
+        void setUp() {
+            final Random random = new Random(SEED);
+            for (int f = 0; f < FRAMES; f++) {
+                final byte[] frame = new byte[PackedFrameDecoder.HEADER_LENGTH
+                        + SAMPLES_PER_FRAME * PackedFrameDecoder.SAMPLE_LENGTH];
+                final long boardMicros = (long) f * SAMPLES_PER_FRAME * INTERVAL_MICROS;
+                putLe(frame, 0, f, 2);
+                putLe(frame, 2, boardMicros, 4);
+                putLe(frame, 6, INTERVAL_MICROS, 2);
+                for (int offset = PackedFrameDecoder.HEADER_LENGTH; offset < frame.length;
+                        offset += 2) {
+                    putLe(frame, offset, random.nextInt(36000) - 18000, 2);
+                }
+                mFrames[f] = frame;
+            }
+        }
+
+        @Override
+        long run(int ops) {
+            // Frames keep arriving in sequence across rounds, as they would from the board.
+            for (int i = 0; i < ops; i++) {
+                mReceivedNanos += SAMPLES_PER_FRAME * INTERVAL_MICROS * 1000L;
+                mDecoder.decode(mFrames[i % FRAMES], mReceivedNanos, mSample, mSink);
+            }
+            return mSum;
+        }
+
+        private static void putLe(byte[] out, int offset, long value, int length) {
+            for (int i = 0; i < length; i++) {
+                out[offset + i] = (byte) (value >> (8 * i));
+            }
+        }
+    }
+
+    private static short[] randomHundredths() {
+        final Random random = new Random(SEED);
+        final short[] values = new short[INPUTS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (short) (random.nextInt(36000) - 18000);
+        }
+        return values;
+    }
+
+    /** How the activities formatted a value for display. */
+    static final class LegacyFormat extends BenchmarkRunner.Case {
+        private short[] mValues;
+
+        LegacyFormat() {
+            super("format.legacy", 200000);
+        }
+
+        @Override
+        void setUp() {
+            mValues = randomHundredths();
+        }
+
+        @Override
+        long run(int ops) {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                final short value = mValues[i & (INPUTS - 1)];
+                result += String.format("%d.%d " + "\u00b0", value / 100, value % 100).length();
+            }
+            return result;
+        }
+    }
+
+    static final class FormatterFormat extends BenchmarkRunner.Case {
+        private short[] mValues;
+        private final char[] mText = new char[SampleFormatter.MAX_LENGTH];
+
+        FormatterFormat() {
+            super("format.formatter", 2000000);
+        }
+
+        @Override
+        void setUp() {
+            mValues = randomHundredths();
+        }
+
+        @Override
+        long run(int ops) {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                result += SampleFormatter.formatHundredths(mValues[i & (INPUTS - 1)],
+                        SampleFormatter.UNIT_DEGREE, mText);
+            }
+            return result;
+        }
+    }
+
+    /** One sample delivered to listeners that each watch one of the devices. */
+    static final class Fanout extends BenchmarkRunner.Case {
+        private final int mListenerCount;
+        private final GattEventFanout mFanout = new GattEventFanout();
+        private final SensorSample mSample = new SensorSample();
+        private final String[] mAddresses;
+        private long mSum;
+
+        Fanout(int listeners) {
+            super("dispatch.fanout." + listeners, 2000000);
+            mListenerCount = listeners;
+            mAddresses = new String[listeners];
+        }
+
+        @Override
+        void setUp() {
+            final GattEventListener target = new GattEventListener() {
+                @Override
+                public void onConnectionStateChanged(String address, int state) {
+                }
+
+                @Override
+                public void onServicesDiscovered(String address) {
+                }
+
+                @Override
+                public void onSample(String address, SensorSample sample) {
+                    mSum += sample.value;
+                }
+
+                @Override
+                public void onWriteAck(String address, UUID characteristic, int status) {
+                }
+            };
+            for (int i = 0; i < mListenerCount; i++) {
+                mAddresses[i] = String.format("00:11:22:33:44:%02X", i);
+                mFanout.add(new FilteredGattEventListener(target,
+                        Collections.singleton(mAddresses[i])), GattEventListener.EVENT_ALL);
+            }
+        }
+
+        @Override
+        long run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                mSample.set(i % SensorSample.CHANNEL_COUNT, (short) i, i);
+                mFanout.onSample(mAddresses[i % mListenerCount], mSample);
+            }
+            return mSum;
+        }
+    }
+
+    /**
+     * Operations through the GATT queue, completed as soon as they are issued.  With a burst of
+     * one the queue is idle on every enqueue; larger bursts exercise the pending path.  With
+     * metrics, the queue records waits and latencies as it does in the app.
+     */
+    static final class QueueThroughput extends BenchmarkRunner.Case {
+        private static final GattOperationQueue.Timer NO_TIMER = new GattOperationQueue.Timer() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+            }
+        };
+
+        private final int mBurst;
+        private final GattOperationQueue mQueue;
+        private final GattOperationQueue.Operation[] mOperations;
+
+        QueueThroughput(int burst, boolean metrics) {
+            super("queue.burst" + burst + (metrics ? ".metrics" : ""), 1000000);
+            mBurst = burst;
+            mQueue = new GattOperationQueue(NO_TIMER, metrics ? new GattMetrics() : null);
+            mOperations = new GattOperationQueue.Operation[burst];
+        }
+
+        @Override
+        void setUp() {
+            for (int i = 0; i < mBurst; i++) {
+                // Distinct characteristics, so no read is dropped as a duplicate.
+                mOperations[i] = new GattOperationQueue.Operation(GattOperationQueue.OP_READ,
+                        new UUID(SEED, i), GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+                    @Override
+                    boolean execute() {
+                        return true;
+                    }
+                };
+            }
+        }
+
+        @Override
+        long run(int ops) {
+            for (int done = 0; done < ops; done += mBurst) {
+                for (int i = 0; i < mBurst; i++) {
+                    mQueue.enqueue(mOperations[i]);
+                }
+                for (int i = 0; i < mBurst; i++) {
+                    mQueue.onOperationCompleted(GattOperationQueue.OP_READ,
+                            mOperations[i].mUuid, 0);
+                }
+            }
+            return mQueue.getCompletedCount();
+        }
+    }
+
+    /** Latencies spread over the histogram's range, recorded as the data path does. */
+    static final class MetricsRecord extends BenchmarkRunner.Case {
+        private final GattMetrics mMetrics = new GattMetrics();
+        private final long[] mLatencies = new long[INPUTS];
+
+        MetricsRecord() {
+            super("metrics.record", 1000000);
+        }
+
+        @Override
+        void setUp() {
+            final Random random = new Random(SEED);
+            for (int i = 0; i < INPUTS; i++) {
+                // Log-uniform from 1us to about 1s.
+                mLatencies[i] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+            }
+        }
+
+        @Override
+        long run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                mMetrics.count(GattMetrics.NOTIFICATIONS);
+                mMetrics.record(GattMetrics.NOTIFICATION_INTERVAL, mLatencies[i & (INPUTS - 1)]);
+            }
+            return mMetrics.getHistogram(GattMetrics.NOTIFICATION_INTERVAL).getMaxNanos();
+        }
+    }
+
+    /** Stands in for {@code BluetoothDevice}, which is equal by address. */
+    static final class Device {
+        final String address;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Device && address.equals(((Device) o).address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode();
+        }
+    }
+
+    // Advertisements from 64 devices in random order.  Every result carries its own device
+    // object and address string, like results unparceled from the scan callback.
+    private static Device[] advertisements() {
+        final Random random = new Random(SEED);
+        final Device[] devices = new Device[INPUTS];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = new Device(String.format("C0:FF:EE:00:00:%02X", random.nextInt(64)));
+        }
+        return devices;
+    }
+
+    /** {@code LeDeviceListAdapter.addDevice} as it was: a linear contains() per result. */
+    static final class LegacyScanDedup extends BenchmarkRunner.Case {
+        private Device[] mResults;
+        private final ArrayList<Device> mLeDevices = new ArrayList<Device>();
+
+        LegacyScanDedup() {
+            super("scan.legacy", 1000000);
+        }
+
+        @Override
+        void setUp() {
+            mResults = advertisements();
+        }
+
+        @Override
+        long run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                final Device device = mResults[i & (INPUTS - 1)];
+                if (!mLeDevices.contains(device)) {
+                    mLeDevices.add(device);
+                }
+            }
+            return mLeDevices.size();
+        }
+    }
+
+    static final class AggregatorScanDedup extends BenchmarkRunner.Case {
+        private Device[] mResults;
+        private final ScanAggregator<Device> mAggregator = new ScanAggregator<Device>();
+
+        AggregatorScanDedup() {
+            super("scan.aggregator", 1000000);
+        }
+
+        @Override
+        void setUp() {
+            mResults = advertisements();
+        }
+
+        @Override
+        long run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                final Device device = mResults[i & (INPUTS - 1)];
+                mAggregator.onResult(device.address, device, -60, i);
+            }
+            return mAggregator.getResultCount();
+        }
+    }
+
+    // Attributes named by the app, and characteristics of a typical peripheral to look up:
+    // some known, some not.
+    private static final String[][] NAMED = {
+            {"0000180d-0000-1000-8000-00805f9b34fb", "Heart Rate Service"},
+            {"0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service"},
+            {SampleGattAttributes.HEART_RATE_MEASUREMENT, "Heart Rate Measurement"},
+            {"00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name String"},
+            {SampleGattAttributes.TEMP_MEASUREMENT, "Temperature Measurement"},
+            {SampleGattAttributes.PITCH_MEASUREMENT, "Pitch Measurement"},
+            {SampleGattAttributes.ROLL_MEASUREMENT, "Roll Measurement"},
+            {SampleGattAttributes.DOUBLE_TAP_CHARA, "Double Tap Notification"},
+            {SampleGattAttributes.SAMPLE_CHARA, "Motor Command"},
+    };
+    private static final String[] LOOKED_UP = {
+            "00001800-0000-1000-8000-00805f9b34fb",
+            "00001801-0000-1000-8000-00805f9b34fb",
+            "00002a00-0000-1000-8000-00805f9b34fb",
+            "00002a29-0000-1000-8000-00805f9b34fb",
+            "0000180a-0000-1000-8000-00805f9b34fb",
+            SampleGattAttributes.SENSOR_SERVICE,
+            SampleGattAttributes.TEMP_MEASUREMENT,
+            SampleGattAttributes.PITCH_MEASUREMENT,
+            SampleGattAttributes.ROLL_MEASUREMENT,
+            SampleGattAttributes.SENSOR_FRAME,
+            SampleGattAttributes.DT_SERVICE,
+            SampleGattAttributes.DOUBLE_TAP_CHARA,
+            SampleGattAttributes.SAMPLE_SERVICE,
+            SampleGattAttributes.SAMPLE_CHARA,
+            SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG,
+            "f000aa01-0451-4000-b000-000000000000",
+    };
+
+    private static UUID[] lookedUp() {
+        final UUID[] uuids = new UUID[LOOKED_UP.length];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.fromString(LOOKED_UP[i]);
+        }
+        return uuids;
+    }
+
+    /** {@code SampleGattAttributes.lookup} as it was: a HashMap keyed by UUID strings. */
+    static final class LegacyUuidLookup extends BenchmarkRunner.Case {
+        private final HashMap<String, String> mAttributes = new HashMap<String, String>();
+        private UUID[] mUuids;
+
+        LegacyUuidLookup() {
+            super("uuid.legacy", 1000000);
+        }
+
+        @Override
+        void setUp() {
+            for (String[] entry : NAMED) {
+                mAttributes.put(entry[0], entry[1]);
+            }
+            mUuids = lookedUp();
+        }
+
+        @Override
+        long run(int ops) {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                // Callers had a UUID and converted it for every lookup.
+                final String name = mAttributes.get(mUuids[i % mUuids.length].toString());
+                result += name == null ? 0 : name.length();
+            }
+            return result;
+        }
+    }
+
+    static final class RegistryUuidLookup extends BenchmarkRunner.Case {
+        private final UuidRegistry mRegistry = new UuidRegistry();
+        private UUID[] mUuids;
+
+        RegistryUuidLookup() {
+            super("uuid.registry", 10000000);
+        }
+
+        @Override
+        void setUp() {
+            for (String[] entry : NAMED) {
+                mRegistry.put(entry[0], entry[1]);
+            }
+            mUuids = lookedUp();
+        }
+
+        @Override
+        long run(int ops) {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                final String name = mRegistry.lookup(mUuids[i % mUuids.length]);
+                result += name == null ? 0 : name.length();
+            }
+            return result;
+        }
+    }
+}
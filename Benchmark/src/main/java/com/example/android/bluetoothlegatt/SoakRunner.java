@@ -0,0 +1,867 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Soak and load test of the connection pipeline on a plain JVM.  Connects {@link GattConnection}s
+ * to {@link SimulatedPeripheral}s, streams sensor data from all of them and writes motor
+ * commands at a fixed rate, the way {@link BluetoothLeService} drives them on a device:
+ * transport callbacks arrive on one callback thread, timeouts, polls and reconnects run on a
+ * separate main thread, and samples are decoded on an {@link IngestionPipeline} and reach a
+ * listener through a {@link GattEventFanout}.
+ *
+ * <p>The peripherals send sample counters instead of signals, so every sample that reaches the
+ * listener is matched to the time it was taken.  Every interval one line reports throughput,
+ * end-to-end latency percentiles, samples that never arrived, motor write acks, reconnects,
+ * the heap left after the latest collection and GC pauses; a summary of the whole run follows
+ * at the end.
+ *
+ * <pre>
+ * java SoakRunner [--devices n] [--rate hz] [--frames on|off] [--writes per-second]
+ *                 [--duration time] [--interval time] [--warmup time] [--latency us]
+ *                 [--jitter us] [--loss fraction] [--drop-every time] [--bonded on|off]
+ *                 [--profile name] [--ingest on|off] [--policy name] [--listener-delay us]
+ *                 [--full-gc on|off] [--tsv file] [--verbose on|off]
+ * </pre>
+ *
+ * Times take an s, m or h suffix and default to seconds.
+ */
+public final class SoakRunner {
+    private static final int DEFAULT_DEVICES = 8;
+    private static final int DEFAULT_RATE_HZ = 100;
+    private static final int DEFAULT_WRITES_PER_SECOND = 10;
+    private static final long DEFAULT_DURATION_SECONDS = 600;
+    private static final long DEFAULT_INTERVAL_SECONDS = 10;
+    private static final long DEFAULT_WARMUP_SECONDS = 10;
+
+    private static final long MB = 1024 * 1024;
+
+    // Run options.
+    private int mDeviceCount = DEFAULT_DEVICES;
+    private final SimulatedPeripheral.Config mConfig = new SimulatedPeripheral.Config();
+    private int mWritesPerSecond = DEFAULT_WRITES_PER_SECOND;
+    private long mDurationNanos = TimeUnit.SECONDS.toNanos(DEFAULT_DURATION_SECONDS);
+    private long mIntervalNanos = TimeUnit.SECONDS.toNanos(DEFAULT_INTERVAL_SECONDS);
+    private long mWarmupNanos = TimeUnit.SECONDS.toNanos(DEFAULT_WARMUP_SECONDS);
+    private long mDropEveryNanos;
+    private int mLinkProfile = LinkProfile.BALANCED;
+    private boolean mIngest = true;
+    private int mIngestionPolicy = IngestionPipeline.POLICY_DROP_NEWEST;
+    // Time the listener spends on every sample, to stand in for a slow consumer.
+    private long mListenerDelayNanos;
+    private boolean mFullGc;
+    private String mTsvPath;
+    private boolean mVerbose;
+
+    // Transport callbacks, like the Bluetooth stack's binder thread; and the service's main
+    // thread, which runs the connections' timers.
+    private final ScheduledExecutorService mCallbackExecutor = SimulatedPeripheral.newExecutor();
+    private final ScheduledExecutorService mMainExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "main");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final IngestionPipeline mIngestion = new IngestionPipeline();
+
+    private final ArrayList<Device> mDevices = new ArrayList<Device>();
+    // Filled before the first connect, read-only afterwards.
+    private final HashMap<String, Device> mDevicesByAddress = new HashMap<String, Device>();
+    private final GattEventFanout mListeners = new GattEventFanout();
+    private final SoakHost mHost = new SoakHost();
+    private final GcMonitor mGcMonitor = new GcMonitor();
+
+    // Guarded by itself: latencies and counts since the last report, and since warmup.
+    private final Totals mInterval = new Totals();
+    private final Totals mRun = new Totals();
+    private volatile boolean mWarmedUp;
+
+    /** One simulated board and the connection to it. */
+    private static final class Device {
+        final String mAddress;
+        SimulatedPeripheral mPeripheral;
+        GattConnection mConnection;
+        // Last counter seen per channel, and whether there is one; only touched by the thread
+        // delivering samples.
+        final short[] mLastCounter = new short[SensorSample.CHANNEL_COUNT];
+        final boolean[] mSynced = new boolean[SensorSample.CHANNEL_COUNT];
+        // Links lost so far, counted on the callback thread; the sample thread resyncs when it
+        // sees this move past mSyncedLinks.
+        volatile int mLinksLost;
+        int mSyncedLinks;
+
+        Device(String address) {
+            mAddress = address;
+        }
+    }
+
+    /** What happened over some stretch of the run. */
+    private static final class Totals {
+        final LatencyHistogram mLatency = new LatencyHistogram();
+        long mSamples;
+        long mDropped;
+        long mReordered;
+        long mWriteAcks;
+        long mWriteFailures;
+        long mDisconnects;
+
+        void reset() {
+            mLatency.reset();
+            mSamples = 0;
+            mDropped = 0;
+            mReordered = 0;
+            mWriteAcks = 0;
+            mWriteFailures = 0;
+            mDisconnects = 0;
+        }
+    }
+
+    private SoakRunner() {
+        mConfig.waveform = SimulatedPeripheral.WAVEFORM_COUNTER;
+        mConfig.sampleRateHz = DEFAULT_RATE_HZ;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SoakRunner runner = new SoakRunner();
+        runner.parse(args);
+        runner.run(System.out);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            final String value = args[++i];
+            if ("--devices".equals(arg)) {
+                mDeviceCount = Integer.parseInt(value);
+            } else if ("--rate".equals(arg)) {
+                mConfig.sampleRateHz = Integer.parseInt(value);
+            } else if ("--frames".equals(arg)) {
+                mConfig.frames = parseSwitch(value);
+            } else if ("--writes".equals(arg)) {
+                mWritesPerSecond = Integer.parseInt(value);
+            } else if ("--duration".equals(arg)) {
+                mDurationNanos = parseTime(value);
+            } else if ("--interval".equals(arg)) {
+                mIntervalNanos = parseTime(value);
+            } else if ("--warmup".equals(arg)) {
+                mWarmupNanos = parseTime(value);
+            } else if ("--latency".equals(arg)) {
+                mConfig.latencyMicros = Long.parseLong(value);
+            } else if ("--jitter".equals(arg)) {
+                mConfig.jitterMicros = Long.parseLong(value);
+            } else if ("--loss".equals(arg)) {
+                mConfig.lossRate = Double.parseDouble(value);
+            } else if ("--drop-every".equals(arg)) {
+                mDropEveryNanos = parseTime(value);
+            } else if ("--bonded".equals(arg)) {
+                mConfig.bonded = parseSwitch(value);
+            } else if ("--profile".equals(arg)) {
+                mLinkProfile = parseProfile(value);
+            } else if ("--ingest".equals(arg)) {
+                mIngest = parseSwitch(value);
+            } else if ("--policy".equals(arg)) {
+                mIngestionPolicy = parsePolicy(value);
+            } else if ("--listener-delay".equals(arg)) {
+                mListenerDelayNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+            } else if ("--full-gc".equals(arg)) {
+                mFullGc = parseSwitch(value);
+            } else if ("--tsv".equals(arg)) {
+                mTsvPath = value;
+            } else if ("--verbose".equals(arg)) {
+                mVerbose = parseSwitch(value);
+            } else {
+                usage("Unknown option " + arg);
+            }
+        }
+        if (mDeviceCount < 1 || mConfig.sampleRateHz < 1 || mWritesPerSecond < 0
+                || mIntervalNanos <= 0 || mDurationNanos < mIntervalNanos) {
+            usage("Need a device, a positive rate and a duration of at least one interval");
+        }
+    }
+
+    private void run(PrintStream out) throws Exception {
+        mGcMonitor.start();
+        final PrintWriter tsv = mTsvPath == null ? null : new PrintWriter(
+                new OutputStreamWriter(new FileOutputStream(mTsvPath), "UTF-8"));
+        mListeners.add(mListener, GattEventListener.EVENT_ALL);
+        final GattOperationQueue.Timer timer = new ExecutorTimer(mMainExecutor);
+        final HashMap<String, SimulatedPeripheral> peripherals =
+                new HashMap<String, SimulatedPeripheral>();
+        final GattTransport.Factory simulated =
+                SimulatedPeripheral.factory(mConfig, mCallbackExecutor);
+        final GattTransport.Factory transports = new GattTransport.Factory() {
+            @Override
+            public GattTransport create(String address, GattTransport.Callback callback) {
+                final GattTransport transport = simulated.create(address, callback);
+                peripherals.put(address, (SimulatedPeripheral) transport);
+                return transport;
+            }
+        };
+        if (mIngest) {
+            mIngestion.setPolicy(mIngestionPolicy);
+            mIngestion.start();
+        }
+        for (int index = 0; index < mDeviceCount; index++) {
+            final Device device = new Device(String.format(Locale.US, "5E:57:00:00:%02X:%02X",
+                    index >> 8, index & 0xff));
+            device.mConnection = new GattConnection(mHost, device.mAddress, index, timer,
+                    transports, mIngest ? mIngestion : null);
+            device.mPeripheral = peripherals.get(device.mAddress);
+            mDevices.add(device);
+            mDevicesByAddress.put(device.mAddress, device);
+        }
+
+        out.println(String.format(Locale.US, "%d devices at %d Hz (%s), %d motor writes/s each,"
+                        + " latency %d+%dus, loss %.3f, profile %s, ingestion %s,"
+                        + " listener %dus, %s",
+                mDeviceCount, mConfig.sampleRateHz, mConfig.frames ? "frames" : "per channel",
+                mWritesPerSecond, mConfig.latencyMicros, mConfig.jitterMicros, mConfig.lossRate,
+                LinkProfile.nameOf(mLinkProfile),
+                mIngest ? IngestionPipeline.nameOfPolicy(mIngestionPolicy) : "inline",
+                TimeUnit.NANOSECONDS.toMicros(mListenerDelayNanos), formatTime(mDurationNanos)));
+        final String header = String.format(Locale.US,
+                "%8s %9s %8s %5s %8s %8s %8s %8s %8s %7s %5s %7s %5s %7s %7s",
+                "time", "samples/s", "dropped", "order", "p50 ms", "p99 ms", "p99.9 ms",
+                "max ms", "writes/s", "timeout", "disc", "heap MB", "gcs", "gc ms", "max ms");
+        out.println(header);
+        if (tsv != null) {
+            tsv.println("seconds\tsamples_per_second\tdropped\treordered\tp50_ms\tp99_ms"
+                    + "\tp999_ms\tmax_ms\twrites_per_second\ttimed_out\tdisconnects"
+                    + "\theap_after_gc_mb\tgc_count\tgc_pause_ms\tgc_max_pause_ms");
+        }
+
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (Device device : mDevices) {
+                    device.mConnection.setLinkProfile(mLinkProfile);
+                    device.mConnection.connect();
+                    device.mConnection.startSensorStreaming();
+                }
+                return null;
+            }
+        });
+        if (mWritesPerSecond > 0) {
+            mMainExecutor.scheduleAtFixedRate(mWriteTask, 0, 1000000000L / mWritesPerSecond,
+                    TimeUnit.NANOSECONDS);
+        }
+        if (mDropEveryNanos > 0) {
+            mMainExecutor.scheduleAtFixedRate(mDropTask, mDropEveryNanos, mDropEveryNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        final long start = System.nanoTime();
+        final Totals interval = new Totals();
+        final ArrayList<double[]> heapPoints = new ArrayList<double[]>();
+        long lastTimedOut = 0;
+        long lastReport = start;
+        for (long next = start + mIntervalNanos; next <= start + mDurationNanos;
+                next += mIntervalNanos) {
+            sleepUntil(next);
+            if (!mWarmedUp && next - start >= mWarmupNanos) {
+                synchronized (mRun) {
+                    mRun.reset();
+                }
+                mWarmedUp = true;
+            }
+            if (mFullGc) {
+                System.gc();
+            }
+            final long now = System.nanoTime();
+            synchronized (mInterval) {
+                copy(mInterval, interval);
+                mInterval.reset();
+            }
+            final GcMonitor.Snapshot gc = mGcMonitor.takeInterval();
+            final ConnectionStats stats = aggregateStats();
+            final double seconds = (now - lastReport) / 1e9;
+            lastReport = now;
+            final double elapsed = (now - start) / 1e9;
+            if (mWarmedUp && gc.mCollected) {
+                heapPoints.add(new double[] {elapsed, gc.mHeapAfterGc});
+            }
+            final Object[] row = {
+                    elapsed, interval.mSamples / seconds, interval.mDropped, interval.mReordered,
+                    interval.mLatency.getPercentileNanos(0.5) / 1e6,
+                    interval.mLatency.getPercentileNanos(0.99) / 1e6,
+                    interval.mLatency.getPercentileNanos(0.999) / 1e6,
+                    interval.mLatency.getMaxNanos() / 1e6,
+                    interval.mWriteAcks / seconds, stats.timedOut - lastTimedOut,
+                    interval.mDisconnects, gc.mHeapAfterGc / (double) MB, gc.mCount,
+                    gc.mPauseNanos / 1e6, gc.mMaxPauseNanos / 1e6};
+            lastTimedOut = stats.timedOut;
+            out.println(String.format(Locale.US,
+                    "%7.0fs %9.0f %8d %5d %8.1f %8.1f %8.1f %8.1f %8.1f %7d %5d %7.1f %5d %7.1f"
+                            + " %7.1f", row));
+            if (tsv != null) {
+                tsv.println(String.format(Locale.US, "%.0f\t%.1f\t%d\t%d\t%.2f\t%.2f\t%.2f\t%.2f"
+                        + "\t%.1f\t%d\t%d\t%.2f\t%d\t%.2f\t%.2f", row));
+                tsv.flush();
+            }
+        }
+
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (Device device : mDevices) {
+                    device.mConnection.close();
+                }
+                return null;
+            }
+        });
+        mMainExecutor.shutdownNow();
+        mCallbackExecutor.shutdownNow();
+        mIngestion.stop();
+        if (tsv != null) {
+            tsv.close();
+        }
+        summarize(out, aggregateStats(), heapPoints);
+    }
+
+    private void summarize(PrintStream out, ConnectionStats stats, List<double[]> heapPoints) {
+        final Totals run = new Totals();
+        synchronized (mRun) {
+            copy(mRun, run);
+        }
+        final GcMonitor.Snapshot gc = mGcMonitor.takeRun();
+        out.println();
+        out.println(String.format(Locale.US, "After warmup: %d samples, %d dropped (%.4f%%),"
+                        + " %d out of order, %d motor write acks (%d failed), %d disconnects",
+                run.mSamples, run.mDropped,
+                100.0 * run.mDropped / Math.max(1, run.mSamples + run.mDropped),
+                run.mReordered, run.mWriteAcks, run.mWriteFailures, run.mDisconnects));
+        out.println(String.format(Locale.US, "End-to-end latency: p50 %.2fms, p90 %.2fms,"
+                        + " p99 %.2fms, p99.9 %.2fms, p99.99 %.2fms, max %.2fms",
+                run.mLatency.getPercentileNanos(0.5) / 1e6,
+                run.mLatency.getPercentileNanos(0.9) / 1e6,
+                run.mLatency.getPercentileNanos(0.99) / 1e6,
+                run.mLatency.getPercentileNanos(0.999) / 1e6,
+                run.mLatency.getPercentileNanos(0.9999) / 1e6,
+                run.mLatency.getMaxNanos() / 1e6));
+        out.println("Pipeline: " + stats);
+        if (mIngest) {
+            out.println("Ingestion: " + mIngestion);
+        }
+        final PrintWriter writer = new PrintWriter(out);
+        aggregateMetrics().dump(writer, "  ");
+        writer.flush();
+        out.println(String.format(Locale.US, "GC: %d collections, %.1fms paused, longest %.1fms",
+                gc.mCount, gc.mPauseNanos / 1e6, gc.mMaxPauseNanos / 1e6));
+        if (heapPoints.size() >= 2) {
+            out.println(String.format(Locale.US, "Heap after GC: %.1fMB first, %.1fMB last,"
+                            + " trend %+.2fMB/hour",
+                    heapPoints.get(0)[1] / MB, heapPoints.get(heapPoints.size() - 1)[1] / MB,
+                    slope(heapPoints) * 3600 / MB));
+        }
+    }
+
+    // Counts and times samples as they come out of the fanout, like any app listener.
+    private final GattEventListener mListener = new GattEventListener() {
+        @Override
+        public void onConnectionStateChanged(String address, int state) {
+            if (state != GattTransport.STATE_DISCONNECTED) {
+                return;
+            }
+            // Samples aren't taken while the link is down, but a partly filled frame is
+            // lost with it; resync instead of guessing which.
+            mDevicesByAddress.get(address).mLinksLost++;
+            synchronized (mInterval) {
+                mInterval.mDisconnects++;
+            }
+            if (mWarmedUp) {
+                synchronized (mRun) {
+                    mRun.mDisconnects++;
+                }
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+        }
+
+        @Override
+        public void onSample(String address, SensorSample sample) {
+            final long now = System.nanoTime();
+            final Device device = mDevicesByAddress.get(address);
+            final int linksLost = device.mLinksLost;
+            if (device.mSyncedLinks != linksLost) {
+                for (int c = 0; c < SensorSample.CHANNEL_COUNT; c++) {
+                    device.mSynced[c] = false;
+                }
+                device.mSyncedLinks = linksLost;
+            }
+            final int channel = sample.channel;
+            final long taken = device.mPeripheral.getSampleNanos(sample.value);
+            long dropped = 0;
+            long reordered = 0;
+            if (device.mSynced[channel]) {
+                final int step = (short) (sample.value - device.mLastCounter[channel]);
+                if (step > 0) {
+                    dropped = step - 1;
+                    device.mLastCounter[channel] = sample.value;
+                } else {
+                    reordered = 1;
+                }
+            } else {
+                device.mSynced[channel] = true;
+                device.mLastCounter[channel] = sample.value;
+            }
+            synchronized (mInterval) {
+                record(mInterval, taken == 0 ? -1 : now - taken, dropped, reordered);
+            }
+            if (mWarmedUp) {
+                synchronized (mRun) {
+                    record(mRun, taken == 0 ? -1 : now - taken, dropped, reordered);
+                }
+            }
+            if (mListenerDelayNanos > 0) {
+                // Busy, like a consumer doing real work; sleeping would give the CPU away.
+                while (System.nanoTime() - now < mListenerDelayNanos) {
+                    // Spin.
+                }
+            }
+        }
+
+        @Override
+        public void onWriteAck(String address, UUID characteristic, int status) {
+            final boolean success = status == GattTransport.GATT_SUCCESS;
+            synchronized (mInterval) {
+                countWrite(mInterval, success);
+            }
+            if (mWarmedUp) {
+                synchronized (mRun) {
+                    countWrite(mRun, success);
+                }
+            }
+        }
+    };
+
+    private static void record(Totals totals, long latencyNanos, long dropped, long reordered) {
+        totals.mSamples++;
+        totals.mDropped += dropped;
+        totals.mReordered += reordered;
+        if (latencyNanos >= 0) {
+            totals.mLatency.record(latencyNanos);
+        }
+    }
+
+    private static void countWrite(Totals totals, boolean success) {
+        if (success) {
+            totals.mWriteAcks++;
+        } else {
+            totals.mWriteFailures++;
+        }
+    }
+
+    private static void copy(Totals from, Totals to) {
+        to.mLatency.reset();
+        to.mLatency.add(from.mLatency);
+        to.mSamples = from.mSamples;
+        to.mDropped = from.mDropped;
+        to.mReordered = from.mReordered;
+        to.mWriteAcks = from.mWriteAcks;
+        to.mWriteFailures = from.mWriteFailures;
+        to.mDisconnects = from.mDisconnects;
+    }
+
+    // Sweeps every motor through all speeds, so the coalescer always has something to send.
+    private final Runnable mWriteTask = new Runnable() {
+        private int mStep;
+
+        @Override
+        public void run() {
+            mStep++;
+            for (Device device : mDevices) {
+                device.mConnection.writeMotor(mStep >> 8, mStep);
+            }
+        }
+    };
+
+    // Drops one link at a time, round robin, to soak reconnects.
+    private final Runnable mDropTask = new Runnable() {
+        private int mNext;
+
+        @Override
+        public void run() {
+            mDevices.get(mNext++ % mDevices.size()).mPeripheral.dropLink();
+        }
+    };
+
+    private ConnectionStats aggregateStats() {
+        final ConnectionStats total = new ConnectionStats();
+        for (Device device : mDevices) {
+            total.add(device.mConnection.getStats());
+        }
+        return total;
+    }
+
+    private GattMetrics aggregateMetrics() {
+        final GattMetrics total = new GattMetrics();
+        for (Device device : mDevices) {
+            total.add(device.mConnection.getMetrics());
+        }
+        return total;
+    }
+
+    private <T> T onMain(Callable<T> task) throws InterruptedException, ExecutionException {
+        return mMainExecutor.submit(task).get();
+    }
+
+    /** What BluetoothLeService does for its connections, minus broadcasts and notifications. */
+    private final class SoakHost implements GattConnection.Host {
+        private final CodecTable mCodecs = new CodecTable();
+        private final HashMap<String, AttributeCacheEntry> mCache =
+                new HashMap<String, AttributeCacheEntry>();
+
+        @Override
+        public CodecTable getCodecs() {
+            return mCodecs;
+        }
+
+        @Override
+        public synchronized AttributeCacheEntry getCachedAttributes(String address) {
+            final AttributeCacheEntry entry = mCache.get(address);
+            if (entry == null) {
+                return null;
+            }
+            // The real cache hands out a fresh entry on every load.
+            final AttributeCacheEntry copy = new AttributeCacheEntry();
+            copy.fingerprint = entry.fingerprint;
+            copy.mtu = entry.mtu;
+            copy.enabledHandles = entry.enabledHandles;
+            return copy;
+        }
+
+        @Override
+        public synchronized void putCachedAttributes(String address, AttributeCacheEntry entry) {
+            mCache.put(address, entry);
+        }
+
+        @Override
+        public synchronized void invalidateCachedAttributes(String address) {
+            mCache.remove(address);
+        }
+
+        @Override
+        public void dispatchConnectionState(String address, int state) {
+            mListeners.onConnectionStateChanged(address, state);
+        }
+
+        @Override
+        public void dispatchServicesDiscovered(String address) {
+            mListeners.onServicesDiscovered(address);
+        }
+
+        @Override
+        public void dispatchSample(GattConnection connection, SensorSample sample) {
+            mListeners.onSample(connection.getAddress(), sample);
+        }
+
+        @Override
+        public void dispatchWriteAck(String address, UUID characteristic, byte[] dataSent,
+                                     int status) {
+            mListeners.onWriteAck(address, characteristic, status);
+        }
+
+        @Override
+        public void onDoubleTap(String address) {
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, Throwable tr) {
+            if (mVerbose || priority >= GattConnection.WARN) {
+                System.err.println(tag + ": " + message);
+                if (tr != null) {
+                    tr.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link GattOperationQueue.Timer} on an executor, with the semantics of
+     * {@code Handler.postDelayed} and {@code removeCallbacks}: cancelling a task cancels all
+     * of its pending runs.
+     */
+    private static final class ExecutorTimer implements GattOperationQueue.Timer {
+        private final ScheduledExecutorService mExecutor;
+        private final HashMap<Runnable, List<ScheduledFuture<?>>> mPending =
+                new HashMap<Runnable, List<ScheduledFuture<?>>>();
+
+        ExecutorTimer(ScheduledExecutorService executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMs) {
+            List<ScheduledFuture<?>> runs = mPending.get(task);
+            if (runs == null) {
+                runs = new ArrayList<ScheduledFuture<?>>();
+                mPending.put(task, runs);
+            }
+            final Iterator<ScheduledFuture<?>> it = runs.iterator();
+            while (it.hasNext()) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+            runs.add(mExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public synchronized void cancel(Runnable task) {
+            final List<ScheduledFuture<?>> runs = mPending.remove(task);
+            if (runs == null) {
+                return;
+            }
+            for (ScheduledFuture<?> run : runs) {
+                run.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Listens to the JVM's collections: pause times, and how much heap was left after the
+     * latest one.  Collectors that run concurrently with the application aren't counted as
+     * pauses, and neither are collections forced by {@code --full-gc}.
+     */
+    private static final class GcMonitor implements NotificationListener {
+        static final class Snapshot {
+            long mCount;
+            long mPauseNanos;
+            long mMaxPauseNanos;
+            // Heap left by the latest collection; before the first one, heap in use.
+            long mHeapAfterGc;
+            boolean mCollected;
+        }
+
+        private final HashSet<String> mHeapPools = new HashSet<String>();
+        // Guarded by this.
+        private final Snapshot mInterval = new Snapshot();
+        private final Snapshot mRun = new Snapshot();
+        private long mHeapAfterGc;
+        private boolean mCollected;
+
+        void start() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    mHeapPools.add(pool.getName());
+                }
+            }
+            for (GarbageCollectorMXBean collector
+                    : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter) {
+                    ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+                }
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+                    notification.getType())) {
+                return;
+            }
+            final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                    .from((CompositeData) notification.getUserData());
+            long heap = 0;
+            for (Map.Entry<String, MemoryUsage> pool
+                    : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                if (mHeapPools.contains(pool.getKey())) {
+                    heap += pool.getValue().getUsed();
+                }
+            }
+            final String name = info.getGcName();
+            final boolean pause = !name.contains("Cycles") && !name.contains("Concurrent")
+                    && !"System.gc()".equals(info.getGcCause());
+            final long pauseNanos = TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration());
+            synchronized (this) {
+                mHeapAfterGc = heap;
+                mCollected = true;
+                if (pause) {
+                    count(mInterval, pauseNanos);
+                    count(mRun, pauseNanos);
+                }
+            }
+        }
+
+        synchronized Snapshot takeInterval() {
+            final Snapshot snapshot = take(mInterval);
+            mInterval.mCount = 0;
+            mInterval.mPauseNanos = 0;
+            mInterval.mMaxPauseNanos = 0;
+            return snapshot;
+        }
+
+        synchronized Snapshot takeRun() {
+            return take(mRun);
+        }
+
+        private Snapshot take(Snapshot from) {
+            final Snapshot snapshot = new Snapshot();
+            snapshot.mCount = from.mCount;
+            snapshot.mPauseNanos = from.mPauseNanos;
+            snapshot.mMaxPauseNanos = from.mMaxPauseNanos;
+            snapshot.mCollected = mCollected;
+            snapshot.mHeapAfterGc = mCollected ? mHeapAfterGc
+                    : ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            return snapshot;
+        }
+
+        private static void count(Snapshot snapshot, long pauseNanos) {
+            snapshot.mCount++;
+            snapshot.mPauseNanos += pauseNanos;
+            snapshot.mMaxPauseNanos = Math.max(snapshot.mMaxPauseNanos, pauseNanos);
+        }
+    }
+
+    // Least-squares slope of y over x.
+    private static double slope(List<double[]> points) {
+        double sumX = 0;
+        double sumY = 0;
+        for (double[] point : points) {
+            sumX += point[0];
+            sumY += point[1];
+        }
+        final double meanX = sumX / points.size();
+        final double meanY = sumY / points.size();
+        double covariance = 0;
+        double variance = 0;
+        for (double[] point : points) {
+            covariance += (point[0] - meanX) * (point[1] - meanY);
+            variance += (point[0] - meanX) * (point[0] - meanX);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static long parseTime(String value) {
+        final char unit = value.charAt(value.length() - 1);
+        final TimeUnit timeUnit;
+        switch (unit) {
+            case 'h':
+                timeUnit = TimeUnit.HOURS;
+                break;
+            case 'm':
+                timeUnit = TimeUnit.MINUTES;
+                break;
+            case 's':
+                timeUnit = TimeUnit.SECONDS;
+                break;
+            default:
+                return TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+        }
+        return timeUnit.toNanos(Long.parseLong(value.substring(0, value.length() - 1)));
+    }
+
+    private static String formatTime(long nanos) {
+        final long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+        if (seconds % 3600 == 0) {
+            return seconds / 3600 + "h";
+        } else if (seconds % 60 == 0) {
+            return seconds / 60 + "m";
+        }
+        return seconds + "s";
+    }
+
+    private static boolean parseSwitch(String value) {
+        if ("on".equals(value) || "true".equals(value)) {
+            return true;
+        } else if ("off".equals(value) || "false".equals(value)) {
+            return false;
+        }
+        usage("Expected on or off, got " + value);
+        return false;
+    }
+
+    private static int parseProfile(String value) {
+        for (int profile = 0; profile < LinkProfile.COUNT; profile++) {
+            if (LinkProfile.nameOf(profile).equals(value)) {
+                return profile;
+            }
+        }
+        usage("Unknown link profile " + value);
+        return LinkProfile.BALANCED;
+    }
+
+    private static int parsePolicy(String value) {
+        for (int policy = 0; policy < IngestionPipeline.POLICY_COUNT; policy++) {
+            if (IngestionPipeline.nameOfPolicy(policy).equals(value)) {
+                return policy;
+            }
+        }
+        usage("Unknown ingestion policy " + value);
+        return IngestionPipeline.POLICY_DROP_NEWEST;
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: SoakRunner [--devices n] [--rate hz] [--frames on|off]"
+                + " [--writes per-second] [--duration time] [--interval time] [--warmup time]"
+                + " [--latency us] [--jitter us] [--loss fraction] [--drop-every time]"
+                + " [--bonded on|off]"
+                + " [--profile high-throughput|balanced|low-power] [--ingest on|off]"
+                + " [--policy drop-newest|drop-oldest|block] [--listener-delay us]"
+                + " [--full-gc on|off] [--tsv file] [--verbose on|off]");
+        System.exit(2);
+    }
+}